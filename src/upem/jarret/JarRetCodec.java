@@ -0,0 +1,69 @@
+package upem.jarret;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import upem.jarret.task.TaskServer;
+import upem.jarret.task.TaskWorker;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.introspect.VisibilityChecker;
+
+/**
+ * JSON readers and writers shared by server and client. They are built once:
+ * building a mapper and introspecting a type costs far more than reading a
+ * message. Readers and writers are immutable, so they can be used from any
+ * thread.
+ */
+public class JarRetCodec {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	static {
+		// http://stackoverflow.com/questions/23469784/com-fasterxml-jackson-databind-exc-unrecognizedpropertyexception-unrecognized-f
+		MAPPER.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+		MAPPER.setVisibilityChecker(VisibilityChecker.Std.defaultInstance()
+				.withFieldVisibility(JsonAutoDetect.Visibility.ANY));
+	}
+
+	/**
+	 * Read a task sent to a worker.
+	 */
+	public static final ObjectReader TASK_WORKER_READER = MAPPER
+			.reader(TaskWorker.class);
+	/**
+	 * Read a job of a task description file.
+	 */
+	public static final ObjectReader TASK_SERVER_READER = MAPPER
+			.reader(TaskServer.class);
+	/**
+	 * Read any JSON object as a map.
+	 */
+	public static final ObjectReader MAP_READER = MAPPER
+			.reader(new TypeReference<HashMap<String, Object>>() {
+			});
+	/**
+	 * Write maps (messages and results).
+	 */
+	public static final ObjectWriter MAP_WRITER = MAPPER
+			.writerFor(new TypeReference<Map<String, Object>>() {
+			});
+
+	private JarRetCodec() {
+	}
+
+	/**
+	 * Get the factory of the shared mapper, to create streaming parsers and
+	 * generators.
+	 *
+	 * @return JsonFactory.
+	 */
+	public static JsonFactory getFactory() {
+		return MAPPER.getFactory();
+	}
+}
@@ -0,0 +1,76 @@
+package upem.jarret.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import upem.jarret.task.NoTaskException;
+import upem.jarret.task.TaskAssignment;
+import upem.jarret.task.TasksManager;
+
+/**
+ * Measure the cost of giving a task, with thousands of jobs loaded. Each task
+ * given is then answered, or given back one time out of four, so that jobs
+ * keep moving in the queue.
+ * <p>
+ * Usage: DispatchBench [dispatchCount]
+ */
+public class DispatchBench {
+	private static final int[] JOB_COUNTS = { 10, 100, 1000, 5000 };
+	private static final int TASKS_PER_JOB = 1_000_000;
+	private static final int WARM_UP = 200_000;
+
+	public static void main(String[] args) throws IOException,
+			NoTaskException {
+		int dispatchCount = args.length > 0 ? Integer.parseInt(args[0])
+				: 2_000_000;
+		for (int jobCount : JOB_COUNTS) {
+			TasksManager manager = createManager(jobCount);
+			dispatch(manager, WARM_UP);
+			long start = System.nanoTime();
+			dispatch(manager, dispatchCount);
+			long nanos = System.nanoTime() - start;
+			System.out.println(jobCount + " jobs: " + nanos / dispatchCount
+					+ " ns per dispatch");
+		}
+	}
+
+	/**
+	 * Load jobs from a job file, as the server does.
+	 */
+	private static TasksManager createManager(int jobCount)
+			throws IOException {
+		File file = File.createTempFile("jobs", ".json");
+		try {
+			try (PrintWriter writer = new PrintWriter(file)) {
+				for (int i = 0; i < jobCount; i++) {
+					writer.println("{\"JobId\":\"" + i
+							+ "\",\"JobTaskNumber\":\"" + TASKS_PER_JOB
+							+ "\",\"JobDescription\":\"bench\","
+							+ "\"JobPriority\":\"" + (i % 10)
+							+ "\",\"WorkerVersionNumber\":\"1\","
+							+ "\"WorkerURL\":\"http://localhost/bench.jar\","
+							+ "\"WorkerClassName\":\"Bench\"}");
+					writer.println();
+				}
+			}
+			TasksManager manager = new TasksManager();
+			manager.addTaskFromFile(file.getPath());
+			return manager;
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void dispatch(TasksManager manager, int count)
+			throws NoTaskException {
+		for (int i = 0; i < count; i++) {
+			TaskAssignment assignment = manager.nextTask();
+			if ((i & 3) == 0) {
+				manager.addTask(assignment);
+			} else {
+				manager.taskDone(assignment);
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package upem.jarret.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import upem.jarret.JarRetCodec;
+import upem.jarret.task.NoTaskException;
+import upem.jarret.task.TaskAssignment;
+import upem.jarret.task.TaskServer;
+import upem.jarret.task.TasksManager;
+
+/**
+ * Check that jobs get tasks in proportion to their JobPriority. Workers ask
+ * batches of random sizes; each task given is answered, or given back one
+ * time out of a hundred. The share of tasks of each job is printed at each
+ * power of ten, then the ideal share: a job of priority 0 has the weight of a
+ * job of priority 1.
+ * <p>
+ * Usage: ShareSimulation [dispatchCount]
+ */
+public class ShareSimulation {
+	private static final int[] PRIORITIES = { 0, 1, 2, 5 };
+	private static final int TASKS_PER_JOB = 10_000_000;
+	private static final int MAX_BATCH = 64;
+
+	public static void main(String[] args) throws IOException,
+			NoTaskException {
+		int dispatchCount = args.length > 0 ? Integer.parseInt(args[0])
+				: 3_000_000;
+		TasksManager manager = createManager();
+		Random random = new Random(1);
+		long[] counts = new long[PRIORITIES.length];
+		long total = 0;
+		long nanos = 0;
+		long nextPrint = 10_000;
+		while (total < dispatchCount) {
+			long start = System.nanoTime();
+			List<TaskAssignment> assignments = manager.nextTasks(1 + random
+					.nextInt(MAX_BATCH));
+			nanos += System.nanoTime() - start;
+			for (TaskAssignment assignment : assignments) {
+				counts[Integer.parseInt(assignment.getJob().getJobId())]++;
+				if (random.nextInt(100) == 0) {
+					manager.addTask(assignment);
+				} else {
+					manager.taskDone(assignment);
+				}
+			}
+			total += assignments.size();
+			if (total >= nextPrint) {
+				printShares(Long.toString(total), counts, total);
+				nextPrint *= 10;
+			}
+		}
+		printShares(Long.toString(total), counts, total);
+		long[] weights = new long[PRIORITIES.length];
+		long weightSum = 0;
+		for (int i = 0; i < PRIORITIES.length; i++) {
+			weights[i] = Math.max(PRIORITIES[i], 1);
+			weightSum += weights[i];
+		}
+		printShares("ideal", weights, weightSum);
+		System.out.printf("%.1f ns per task given%n", (double) nanos / total);
+	}
+
+	/**
+	 * Add one job per priority, job i has priority PRIORITIES[i].
+	 */
+	private static TasksManager createManager() throws IOException {
+		TasksManager manager = new TasksManager();
+		for (int i = 0; i < PRIORITIES.length; i++) {
+			manager.addTask(JarRetCodec.TASK_SERVER_READER
+					.<TaskServer> readValue("{\"JobId\":\"" + i
+							+ "\",\"JobTaskNumber\":\"" + TASKS_PER_JOB
+							+ "\",\"JobDescription\":\"simulation\","
+							+ "\"JobPriority\":\"" + PRIORITIES[i]
+							+ "\",\"WorkerVersionNumber\":\"1\","
+							+ "\"WorkerURL\":\"http://localhost/sim.jar\","
+							+ "\"WorkerClassName\":\"Simulation\"}"));
+		}
+		return manager;
+	}
+
+	private static void printShares(String label, long[] counts, long total) {
+		StringBuilder line = new StringBuilder(String.format("%-10s", label));
+		for (long count : counts) {
+			line.append(String.format(" %6.2f%%", 100.0 * count / total));
+		}
+		System.out.println(line);
+	}
+}
@@ -0,0 +1,316 @@
+package upem.jarret.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import upem.jarret.JarRetCodec;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Answer of a worker, read in a single pass with a streaming parser. Only the
+ * fields needed by the server are kept; the <i>Answer</i> or <i>Error</i>
+ * value is not parsed into objects, its raw bytes are located in the request
+ * and copied as is.
+ * <p>
+ * A worker answers one task with an <i>Answer</i> or <i>Error</i> field, or a
+ * batch of tasks with a <i>Results</i> array. Each element of the array has a
+ * <i>Task</i> field and an <i>Answer</i> or <i>Error</i> field.
+ * <p>
+ * Content is read in place, from the buffer of the connection, from a
+ * spooled content mapped in memory, or from the buffer where an encoded
+ * content was decoded.
+ */
+class Answer {
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final String REQUIRED_FIELDS[] = { "JobTaskNumber",
+			"WorkerVersionNumber", "WorkerURL", "WorkerClassName", "JobId",
+			"ClientId" };
+
+	private final String values[] = new String[REQUIRED_FIELDS.length];
+	private final List<Result> results = new ArrayList<>();
+	/**
+	 * Content of the request, from index 0.
+	 */
+	private ByteBuffer content;
+
+	private Answer() {
+	}
+
+	/**
+	 * Raw value of the result of one task.
+	 */
+	private static class Result {
+		String task;
+		ByteBuffer input;
+		int start = -1;
+		int end = -1;
+
+		boolean isValid() {
+			return start >= 0;
+		}
+
+		ByteBuffer slice() {
+			ByteBuffer value = input.duplicate();
+			value.limit(end).position(start);
+			return value.slice();
+		}
+	}
+
+	/**
+	 * Read an answer.
+	 *
+	 * @param bb
+	 *            - Buffer containing the request.
+	 * @param start
+	 *            - Index of the first byte of the content.
+	 * @param end
+	 *            - Index following the last byte of the content.
+	 * @return Answer, or null if a required field is missing.
+	 * @throws IOException
+	 *             - If content is not valid JSON.
+	 */
+	static Answer read(ByteBuffer bb, int start, int end) throws IOException {
+		Answer answer = new Answer();
+		ByteBuffer content = bb.duplicate();
+		content.limit(end).position(start);
+		answer.content = content.slice();
+		try (JsonParser parser = createParser(answer.content)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException("Answer is not a JSON object",
+						parser.getCurrentLocation());
+			}
+			Result single = new Result();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if (name.equals("Results") && token == JsonToken.START_ARRAY) {
+					answer.readResults(parser);
+					continue;
+				}
+				if (answer.readResultField(parser, name, token, single)) {
+					continue;
+				}
+				answer.setField(name, parser.getValueAsString());
+				parser.skipChildren();
+			}
+			if (single.isValid()) {
+				answer.results.add(single);
+			}
+		}
+		return answer.isValid() ? answer : null;
+	}
+
+	private static JsonParser createParser(ByteBuffer content)
+			throws IOException {
+		if (content.hasArray()) {
+			return JarRetCodec.getFactory().createParser(content.array(),
+					content.arrayOffset(), content.limit());
+		}
+		// Direct or mapped buffer: read by chunks, not copied at once
+		return JarRetCodec.getFactory().createParser(
+				new ByteBufferInputStream(content.duplicate()));
+	}
+
+	/**
+	 * Read the elements of a <i>Results</i> array.
+	 */
+	private void readResults(JsonParser parser) throws IOException {
+		JsonToken token;
+		while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+			Result result = new Result();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken valueToken = parser.nextToken();
+				if (!readResultField(parser, name, valueToken, result)) {
+					parser.skipChildren();
+				}
+			}
+			if (!result.isValid() || result.task == null) {
+				throw new JsonParseException("Incomplete result in batch",
+						parser.getCurrentLocation());
+			}
+			results.add(result);
+		}
+		if (token != JsonToken.END_ARRAY) {
+			throw new JsonParseException("Results must be objects",
+					parser.getCurrentLocation());
+		}
+	}
+
+	/**
+	 * Read a field of a result if it is one.
+	 *
+	 * @return False if field does not belong to a result.
+	 */
+	private boolean readResultField(JsonParser parser, String name,
+			JsonToken token, Result result) throws IOException {
+		if (name.equals("Answer") || name.equals("Error")) {
+			locateResult(parser, token, result);
+			return true;
+		}
+		if (name.equals("Task")) {
+			result.task = parser.getValueAsString();
+			parser.skipChildren();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Find bytes of the current value. Offsets given by the parser are
+	 * relative to the beginning of the content.
+	 */
+	private void locateResult(JsonParser parser, JsonToken token,
+			Result result) throws IOException {
+		int valueStart = (int) parser.getCurrentLocation().getByteOffset() - 1;
+		byte open;
+		byte close;
+		switch (token) {
+		case START_OBJECT:
+			open = '{';
+			close = '}';
+			parser.skipChildren();
+			break;
+		case START_ARRAY:
+			open = '[';
+			close = ']';
+			parser.skipChildren();
+			break;
+		case VALUE_STRING:
+			open = '"';
+			close = '"';
+			// Read the whole string
+			parser.getText();
+			break;
+		default:
+			// Number, boolean or null: the text is the raw value
+			result.input = ByteBuffer.wrap(parser.getText().getBytes(CHARSET));
+			result.start = 0;
+			result.end = result.input.limit();
+			return;
+		}
+		int valueEnd = (int) parser.getCurrentLocation().getByteOffset();
+		if (valueStart < 0 || content.get(valueStart) != open
+				|| content.get(valueEnd - 1) != close) {
+			throw new JsonParseException("Cannot locate result",
+					parser.getCurrentLocation());
+		}
+		result.input = content;
+		result.start = valueStart;
+		result.end = valueEnd;
+	}
+
+	private void setField(String name, String value) {
+		for (int i = 0; i < REQUIRED_FIELDS.length; i++) {
+			if (REQUIRED_FIELDS[i].equals(name)) {
+				values[i] = value;
+				return;
+			}
+		}
+	}
+
+	private boolean isValid() {
+		for (String value : values) {
+			if (value == null) {
+				return false;
+			}
+		}
+		return !results.isEmpty();
+	}
+
+	String getJobTaskNumber() {
+		return values[0];
+	}
+
+	String getJobId() {
+		return values[4];
+	}
+
+	String getClientId() {
+		return values[5];
+	}
+
+	/**
+	 * @return Task numbers answered, in order. An element is null if client
+	 *         did not send it.
+	 */
+	List<String> getTasks() {
+		List<String> tasks = new ArrayList<>(results.size());
+		for (Result result : results) {
+			tasks.add(result.task);
+		}
+		return tasks;
+	}
+
+	/**
+	 * Build result lines, one per task: prefix followed by raw bytes of the
+	 * <i>Answer</i> or <i>Error</i> value, then a line separator.
+	 *
+	 * @param prefix
+	 *            - Text written before each value.
+	 * @param taskNumbers
+	 *            - For each result, in the order of getTasks(), its task
+	 *            number, or -1 to skip it.
+	 * @return Encoded lines, empty if every result is skipped.
+	 */
+	byte[] toResultLines(String prefix, int[] taskNumbers) {
+		byte[] head = prefix.getBytes(CHARSET);
+		byte[] separator = System.lineSeparator().getBytes(CHARSET);
+		int size = 0;
+		for (int i = 0; i < results.size(); i++) {
+			if (taskNumbers[i] >= 0) {
+				Result result = results.get(i);
+				size += head.length + result.end - result.start
+						+ separator.length;
+			}
+		}
+		byte[] lines = new byte[size];
+		int position = 0;
+		for (int i = 0; i < results.size(); i++) {
+			if (taskNumbers[i] < 0) {
+				continue;
+			}
+			Result result = results.get(i);
+			int length = result.end - result.start;
+			System.arraycopy(head, 0, lines, position, head.length);
+			position += head.length;
+			result.slice().get(lines, position, length);
+			position += length;
+			System.arraycopy(separator, 0, lines, position, separator.length);
+			position += separator.length;
+		}
+		return lines;
+	}
+
+	/**
+	 * Same as toResultLines(), but values are not copied: they are views of
+	 * the content, which must not be reused while lines are written.
+	 *
+	 * @param prefix
+	 *            - Text written before each value.
+	 * @param taskNumbers
+	 *            - For each result, in the order of getTasks(), its task
+	 *            number, or -1 to skip it.
+	 * @return Lines, as prefix, value and separator buffers; empty if every
+	 *         result is skipped.
+	 */
+	ByteBuffer[] toResultBuffers(String prefix, int[] taskNumbers) {
+		byte[] head = prefix.getBytes(CHARSET);
+		byte[] separator = System.lineSeparator().getBytes(CHARSET);
+		List<ByteBuffer> lines = new ArrayList<>();
+		for (int i = 0; i < results.size(); i++) {
+			if (taskNumbers[i] >= 0) {
+				lines.add(ByteBuffer.wrap(head));
+				lines.add(results.get(i).slice());
+				lines.add(ByteBuffer.wrap(separator));
+			}
+		}
+		return lines.toArray(new ByteBuffer[lines.size()]);
+	}
+}
@@ -0,0 +1,119 @@
+package upem.jarret.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Content of a request too large to be kept in a buffer, written to a
+ * temporary file as it is received, or as it is decoded. Once complete, the
+ * file is mapped in memory and deleted: its content is read from the mapping,
+ * without a copy in the heap, until the mapping is garbage collected.
+ */
+class BodySpool {
+	private final FileChannel channel;
+	private final int contentLength;
+	private int received = 0;
+
+	/**
+	 * Create the temporary file.
+	 *
+	 * @param directory
+	 *            - Where the file is created.
+	 * @param contentLength
+	 *            - Number of bytes of the content, or max number of bytes
+	 *            appended.
+	 * @throws IOException
+	 *             - If file cannot be created.
+	 */
+	BodySpool(String directory, int contentLength) throws IOException {
+		Path path = Paths.get(directory);
+		Files.createDirectories(path);
+		channel = FileChannel.open(
+				Files.createTempFile(path, "answer", ".spool"),
+				StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.DELETE_ON_CLOSE);
+		this.contentLength = contentLength;
+	}
+
+	/**
+	 * Write received bytes of the content, then remove them from the buffer
+	 * with the bytes before them. Bytes following the content stay in the
+	 * buffer, at index 0.
+	 *
+	 * @param bb
+	 *            - Buffer in write mode.
+	 * @param start
+	 *            - Index of the first byte of the content in bb.
+	 * @return True if the content is complete.
+	 * @throws IOException
+	 *             - If some I/O error occurs.
+	 */
+	boolean transfer(ByteBuffer bb, int start) throws IOException {
+		int end = Math.min(bb.position(), start + contentLength - received);
+		ByteBuffer content = bb.duplicate();
+		content.limit(end).position(start);
+		while (content.hasRemaining()) {
+			received += channel.write(content, received);
+		}
+		bb.flip();
+		bb.position(end);
+		bb.compact();
+		return isComplete();
+	}
+
+	/**
+	 * Write bytes after the bytes already written.
+	 *
+	 * @param src
+	 *            - Bytes to write, in read mode.
+	 * @return False if they do not fit in contentLength bytes, nothing is
+	 *         written.
+	 * @throws IOException
+	 *             - If some I/O error occurs.
+	 */
+	boolean append(ByteBuffer src) throws IOException {
+		if (src.remaining() > contentLength - received) {
+			return false;
+		}
+		while (src.hasRemaining()) {
+			received += channel.write(src, received);
+		}
+		return true;
+	}
+
+	boolean isComplete() {
+		return received == contentLength;
+	}
+
+	int getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Map the content in memory and delete the file.
+	 *
+	 * @return Bytes written, from index 0.
+	 * @throws IOException
+	 *             - If some I/O error occurs.
+	 */
+	MappedByteBuffer map() throws IOException {
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, received);
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Delete the file, received bytes are lost.
+	 */
+	void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,104 @@
+package upem.jarret.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Direct buffers shared by all connections. Sizes are rounded up to a size
+ * class, a power of two from MIN_SIZE to MAX_SIZE. Each class keeps free
+ * buffers up to MAX_IDLE_BYTES, other ones are left to the garbage collector.
+ * <p>
+ * Direct buffers are read and written by channels without a copy in a
+ * temporary native buffer. All methods can be called from several threads.
+ */
+class BufferPool {
+	private static final int MIN_SHIFT = 12;
+	private static final int MAX_SHIFT = 20;
+	/**
+	 * Size of the smallest buffers.
+	 */
+	static final int MIN_SIZE = 1 << MIN_SHIFT;
+	/**
+	 * Size of the largest buffers.
+	 */
+	static final int MAX_SIZE = 1 << MAX_SHIFT;
+	/**
+	 * Bytes of free buffers kept in each size class.
+	 */
+	private static final int MAX_IDLE_BYTES = 16 * 1024 * 1024;
+
+	private final List<ConcurrentLinkedQueue<ByteBuffer>> free = new ArrayList<>();
+	/**
+	 * Number of free buffers of each class, may be briefly above the limit.
+	 */
+	private final AtomicIntegerArray idle = new AtomicIntegerArray(MAX_SHIFT
+			- MIN_SHIFT + 1);
+
+	BufferPool() {
+		for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+			free.add(new ConcurrentLinkedQueue<>());
+		}
+	}
+
+	/**
+	 * Borrow a buffer, cleared.
+	 *
+	 * @param size
+	 *            - Capacity needed, at most MAX_SIZE.
+	 * @return Buffer of at least size bytes, to give back with release().
+	 */
+	ByteBuffer acquire(int size) {
+		int sizeClass = sizeClass(size);
+		ByteBuffer bb = free.get(sizeClass).poll();
+		if (bb == null) {
+			return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+		}
+		idle.decrementAndGet(sizeClass);
+		bb.clear();
+		return bb;
+	}
+
+	/**
+	 * Give back a buffer, it must not be used anymore.
+	 *
+	 * @param bb
+	 *            - Buffer given by acquire().
+	 */
+	void release(ByteBuffer bb) {
+		int sizeClass = sizeClass(bb.capacity());
+		if (idle.get(sizeClass) << (sizeClass + MIN_SHIFT) >= MAX_IDLE_BYTES) {
+			return;
+		}
+		idle.incrementAndGet(sizeClass);
+		free.get(sizeClass).offer(bb);
+	}
+
+	/**
+	 * Move the content of a buffer in a larger one, and release it.
+	 *
+	 * @param bb
+	 *            - Buffer in write mode, given by acquire().
+	 * @param size
+	 *            - Capacity needed, at most MAX_SIZE.
+	 * @return Buffer in write mode with the same content.
+	 */
+	ByteBuffer grow(ByteBuffer bb, int size) {
+		ByteBuffer larger = acquire(size);
+		bb.flip();
+		larger.put(bb);
+		release(bb);
+		return larger;
+	}
+
+	private static int sizeClass(int size) {
+		if (size > MAX_SIZE) {
+			throw new IllegalArgumentException("Buffer of " + size
+					+ " bytes is too large");
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, MIN_SIZE) - 1);
+		return shift - MIN_SHIFT;
+	}
+}
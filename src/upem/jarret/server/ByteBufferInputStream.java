@@ -0,0 +1,36 @@
+package upem.jarret.server;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Stream over the remaining bytes of a buffer, for readers which need a
+ * stream when the buffer has no array. Bytes are read by chunks, the buffer
+ * is never copied at once.
+ */
+class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer bb;
+
+	/**
+	 * @param bb
+	 *            - Buffer in read mode, its position moves as bytes are read.
+	 */
+	ByteBufferInputStream(ByteBuffer bb) {
+		this.bb = bb;
+	}
+
+	@Override
+	public int read() {
+		return bb.hasRemaining() ? bb.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (!bb.hasRemaining()) {
+			return -1;
+		}
+		int count = Math.min(len, bb.remaining());
+		bb.get(b, off, count);
+		return count;
+	}
+}
@@ -0,0 +1,292 @@
+package upem.jarret.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Durable record of completed tasks, so that a restarted server does not give
+ * them again. Completions are appended to a log once their results are
+ * written. When the log exceeds MAX_LOG_SIZE, and when the journal is closed,
+ * it is compacted in a snapshot holding the done bitset of each job.
+ * <p>
+ * Each log record, and the whole snapshot, end with a CRC32 checksum. Records
+ * after the first invalid one, partially written by a crash, are ignored at
+ * replay and removed from the log.
+ */
+class ProgressJournal {
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final String LOG_FILE = "progress.log";
+	private static final String SNAPSHOT_FILE = "progress.snapshot";
+	private static final int SNAPSHOT_MAGIC = 0x4A525031;
+	/**
+	 * Size of the log, in bytes, after which it is compacted.
+	 */
+	private static final long MAX_LOG_SIZE = 64 * 1024 * 1024;
+	/**
+	 * Max number of task numbers in one record, larger counts are corrupted
+	 * records.
+	 */
+	private static final int MAX_RECORD_TASKS = 1 << 20;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Path directory;
+	private final Path logPath;
+	private final Path snapshotPath;
+	private final boolean isSynced;
+	/**
+	 * Done tasks by JobId, as saved in snapshot and log.
+	 */
+	private final HashMap<String, BitSet> done = new HashMap<>();
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final CRC32 crc = new CRC32();
+	private FileChannel log;
+	/**
+	 * Bytes written in the log, buffered bytes excluded.
+	 */
+	private long logSize;
+
+	/**
+	 * @param directory
+	 *            - Where journal files are saved, created if needed.
+	 * @param isSynced
+	 *            - True to force the log to the disk at each commit.
+	 * @throws IOException
+	 *             - If directory cannot be created.
+	 */
+	ProgressJournal(String directory, boolean isSynced) throws IOException {
+		this.directory = Paths.get(directory);
+		logPath = this.directory.resolve(LOG_FILE);
+		snapshotPath = this.directory.resolve(SNAPSHOT_FILE);
+		this.isSynced = isSynced;
+		Files.createDirectories(this.directory);
+	}
+
+	/**
+	 * Read snapshot and log, then open the log to append new records. Must be
+	 * called once, before any other method.
+	 *
+	 * @return Done tasks by JobId.
+	 * @throws IOException
+	 *             - If snapshot is corrupted or files cannot be read.
+	 */
+	synchronized Map<String, BitSet> replay() throws IOException {
+		if (log != null) {
+			throw new IllegalStateException("Journal is already replayed");
+		}
+		if (Files.exists(snapshotPath)) {
+			readSnapshot();
+		}
+		long validSize = Files.exists(logPath) ? readLog() : 0;
+		log = FileChannel.open(logPath, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		// Remove a record partially written by a crash
+		log.truncate(validSize);
+		logSize = validSize;
+		HashMap<String, BitSet> copy = new HashMap<>();
+		done.forEach((jobId, tasks) -> copy.put(jobId, (BitSet) tasks.clone()));
+		return copy;
+	}
+
+	/**
+	 * Add tasks of a job to the journal. They are saved by commit().
+	 *
+	 * @param jobId
+	 *            - Id of the job.
+	 * @param taskNumbers
+	 *            - Completed tasks.
+	 * @throws IOException
+	 *             - If some I/O error occurs.
+	 */
+	synchronized void append(String jobId, int[] taskNumbers)
+			throws IOException {
+		byte[] id = jobId.getBytes(CHARSET);
+		ByteBuffer record = ByteBuffer.allocate(2 + id.length + 4 + 4
+				* taskNumbers.length + 4);
+		record.putShort((short) id.length).put(id).putInt(taskNumbers.length);
+		BitSet tasks = done.computeIfAbsent(jobId, k -> new BitSet());
+		for (int taskNumber : taskNumbers) {
+			record.putInt(taskNumber);
+			tasks.set(taskNumber);
+		}
+		crc.reset();
+		crc.update(record.array(), 0, record.position());
+		record.putInt((int) crc.getValue());
+		record.flip();
+		if (record.remaining() > buffer.remaining()) {
+			flush();
+		}
+		if (record.remaining() > buffer.remaining()) {
+			write(record);
+		} else {
+			buffer.put(record);
+		}
+	}
+
+	/**
+	 * Save appended records, compact the log if it is too large.
+	 *
+	 * @throws IOException
+	 *             - If some I/O error occurs.
+	 */
+	synchronized void commit() throws IOException {
+		flush();
+		if (isSynced) {
+			log.force(false);
+		}
+		if (logSize > MAX_LOG_SIZE) {
+			compact();
+		}
+	}
+
+	/**
+	 * Save appended records in a snapshot and close the log.
+	 *
+	 * @throws IOException
+	 *             - If some I/O error occurs.
+	 */
+	synchronized void close() throws IOException {
+		try {
+			flush();
+			compact();
+		} finally {
+			log.close();
+		}
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		write(buffer);
+		buffer.clear();
+	}
+
+	private void write(ByteBuffer bb) throws IOException {
+		while (bb.hasRemaining()) {
+			logSize += log.write(bb, logSize);
+		}
+	}
+
+	/**
+	 * Write done tasks in a new snapshot, then empty the log. Until the log is
+	 * emptied, replaying it over the snapshot gives the same tasks.
+	 */
+	private void compact() throws IOException {
+		Path tmp = Files.createTempFile(directory, "snapshot", ".tmp");
+		try {
+			try (FileOutputStream file = new FileOutputStream(tmp.toFile())) {
+				CheckedOutputStream checked = new CheckedOutputStream(
+						new BufferedOutputStream(file, BUFFER_SIZE), new CRC32());
+				DataOutputStream out = new DataOutputStream(checked);
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeInt(done.size());
+				for (Map.Entry<String, BitSet> job : done.entrySet()) {
+					out.writeUTF(job.getKey());
+					long[] words = job.getValue().toLongArray();
+					out.writeInt(words.length);
+					for (long word : words) {
+						out.writeLong(word);
+					}
+				}
+				out.writeInt((int) checked.getChecksum().getValue());
+				out.flush();
+				file.getChannel().force(true);
+			}
+			Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		log.truncate(0);
+		log.force(true);
+		logSize = 0;
+	}
+
+	private void readSnapshot() throws IOException {
+		try (InputStream in = Files.newInputStream(snapshotPath)) {
+			CheckedInputStream checked = new CheckedInputStream(
+					new BufferedInputStream(in, BUFFER_SIZE), new CRC32());
+			DataInputStream data = new DataInputStream(checked);
+			if (data.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException(snapshotPath + " is not a snapshot");
+			}
+			int jobCount = data.readInt();
+			for (int i = 0; i < jobCount; i++) {
+				String jobId = data.readUTF();
+				long[] words = new long[data.readInt()];
+				for (int j = 0; j < words.length; j++) {
+					words[j] = data.readLong();
+				}
+				done.put(jobId, BitSet.valueOf(words));
+			}
+			int expected = (int) checked.getChecksum().getValue();
+			if (data.readInt() != expected) {
+				throw new IOException(snapshotPath + " is corrupted");
+			}
+		} catch (EOFException e) {
+			throw new IOException(snapshotPath + " is truncated", e);
+		}
+	}
+
+	/**
+	 * Read valid records of the log.
+	 *
+	 * @return Size of the valid records, in bytes.
+	 */
+	private long readLog() throws IOException {
+		long validSize = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(logPath), BUFFER_SIZE))) {
+			byte[] header = new byte[6];
+			while (true) {
+				in.readFully(header, 0, 2);
+				int idLength = ((header[0] & 0xFF) << 8) | (header[1] & 0xFF);
+				byte[] id = new byte[idLength];
+				in.readFully(id);
+				in.readFully(header, 2, 4);
+				int count = ByteBuffer.wrap(header, 2, 4).getInt();
+				if (count < 0 || count > MAX_RECORD_TASKS) {
+					return validSize;
+				}
+				byte[] tasks = new byte[4 * count];
+				in.readFully(tasks);
+				crc.reset();
+				crc.update(header, 0, 2);
+				crc.update(id);
+				crc.update(header, 2, 4);
+				crc.update(tasks);
+				if (in.readInt() != (int) crc.getValue()) {
+					return validSize;
+				}
+				BitSet done = this.done.computeIfAbsent(new String(id,
+						CHARSET), k -> new BitSet());
+				ByteBuffer numbers = ByteBuffer.wrap(tasks);
+				for (int i = 0; i < count; i++) {
+					done.set(numbers.getInt());
+				}
+				validSize += 2 + idLength + 4 + tasks.length + 4;
+			}
+		} catch (EOFException e) {
+			// Last record is partially written, or log is complete
+			return validSize;
+		}
+	}
+}
@@ -0,0 +1,658 @@
+package upem.jarret.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import upem.jarret.task.TasksManager;
+import upem.logger.Logger;
+import upem.metrics.Histogram;
+
+/**
+ * Append results to files from dedicated threads, so that reactors never wait
+ * for the disk. Each file is always written by the same thread, which keeps it
+ * open while it is used: between two batches, files idle for FILE_IDLE_TIMEOUT
+ * or least recently written beyond MAX_OPEN_FILES are closed. Results are
+ * written by batch: all results waiting in the queue are appended, then files
+ * are flushed together.
+ * <p>
+ * A result file is split in segments of at most maxFileSize bytes: <i>
+ * name.result</i>, then <i>name.1.result</i>, <i>name.2.result</i>...
+ * Segments can be compressed in gzip format.
+ * <p>
+ * Once results of a batch are flushed, their tasks are saved in the progress
+ * journal: a task in the journal has its result in a file. Tasks of results
+ * which cannot be written or flushed are made pending again, to be computed
+ * again.
+ */
+class ResultWriter {
+	/**
+	 * When to force written results to the disk.
+	 */
+	enum FsyncPolicy {
+		/**
+		 * Never, the system decides when data reach the disk.
+		 */
+		NEVER,
+		/**
+		 * Once per batch, for every file written in the batch.
+		 */
+		BATCH;
+
+		static FsyncPolicy parse(String name) {
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	/**
+	 * Milliseconds a writer waits for a result before checking if it must
+	 * stop.
+	 */
+	private static final long POLL_TIMEOUT = 500;
+	/**
+	 * Max number of results appended before files are flushed.
+	 */
+	private static final int MAX_BATCH = 256;
+	/**
+	 * Max number of files kept open by a writer between two batches.
+	 */
+	private static final int MAX_OPEN_FILES = 64;
+	/**
+	 * Milliseconds after which a file not written is closed.
+	 */
+	private static final long FILE_IDLE_TIMEOUT = 60_000;
+	/**
+	 * Bytes buffered for each opened file before being written.
+	 */
+	private static final int BUFFER_SIZE = 16 * 1024;
+	/**
+	 * Header of a gzip member: deflate method, no name, no time.
+	 */
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0,
+			0, 0, 0, 0, (byte) 0xff };
+	/**
+	 * Bytes closing a flushed gzip segment: final empty block and trailer.
+	 */
+	private static final int GZIP_END_SIZE = 10;
+
+	private final Logger logger;
+	private final long maxFileSize;
+	private final FsyncPolicy fsyncPolicy;
+	private final boolean isCompressed;
+	private final ProgressJournal journal;
+	private final TasksManager tasksManager;
+	private final Histogram latency;
+	private final Stage[] stages;
+	private volatile boolean isClosed = false;
+
+	/**
+	 * @param writerCount
+	 *            - Number of writer threads.
+	 * @param queueSize
+	 *            - Number of results waiting for a writer before offer()
+	 *            fails.
+	 * @param fsyncPolicy
+	 *            - When to force data to the disk.
+	 * @param maxFileSize
+	 *            - Max size of a result file (in bytes), 0 for no limit.
+	 *            Compressed files are measured once compressed.
+	 * @param isCompressed
+	 *            - True to write result files in gzip format.
+	 * @param journal
+	 *            - Where tasks of written results are saved, null to not save
+	 *            them.
+	 * @param tasksManager
+	 *            - Where tasks of lost results are made pending again.
+	 * @param latency
+	 *            - Where the time from offer() to flush is counted.
+	 * @param logger
+	 *            - Where to report errors.
+	 */
+	ResultWriter(int writerCount, int queueSize, FsyncPolicy fsyncPolicy,
+			long maxFileSize, boolean isCompressed, ProgressJournal journal,
+			TasksManager tasksManager, Histogram latency, Logger logger) {
+		if (writerCount <= 0 || queueSize < writerCount) {
+			throw new IllegalArgumentException(
+					"Result writer count or queue size is not valid");
+		}
+		this.logger = logger;
+		this.maxFileSize = maxFileSize;
+		this.fsyncPolicy = fsyncPolicy;
+		this.isCompressed = isCompressed;
+		this.journal = journal;
+		this.tasksManager = tasksManager;
+		this.latency = latency;
+		stages = new Stage[writerCount];
+		for (int i = 0; i < writerCount; i++) {
+			stages[i] = new Stage(i, queueSize / writerCount);
+		}
+	}
+
+	/**
+	 * Start writer threads.
+	 */
+	void start() {
+		for (Stage stage : stages) {
+			stage.thread.start();
+		}
+	}
+
+	/**
+	 * Queue result lines. Never blocks.
+	 *
+	 * @param result
+	 *            - Lines and their tasks.
+	 * @return False if queue is full, caller should retry later.
+	 */
+	boolean offer(Result result) {
+		if (isClosed) {
+			throw new IllegalStateException("Result writer is closed");
+		}
+		Stage stage = stages[Math.floorMod(result.path.hashCode(),
+				stages.length)];
+		result.queuedAt = System.nanoTime();
+		return stage.queue.offer(result);
+	}
+
+	/**
+	 * Write all queued results, then close files and stop threads.
+	 */
+	void close() {
+		isClosed = true;
+		for (Stage stage : stages) {
+			try {
+				stage.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Result lines of the tasks of one answer.
+	 */
+	static class Result {
+		final String path;
+		final ByteBuffer[] lines;
+		final String jobId;
+		final int[] taskNumbers;
+		/**
+		 * Time of the last offer, in nanoseconds.
+		 */
+		long queuedAt;
+
+		/**
+		 * @param path
+		 *            - Path of the result file.
+		 * @param line
+		 *            - Encoded lines, with their line separator.
+		 * @param jobId
+		 *            - Id of the job.
+		 * @param taskNumbers
+		 *            - Tasks saved in the journal once lines are written.
+		 */
+		Result(String path, byte[] line, String jobId, int[] taskNumbers) {
+			this(path, new ByteBuffer[] { ByteBuffer.wrap(line) }, jobId,
+					taskNumbers);
+		}
+
+		/**
+		 * @param lines
+		 *            - Encoded lines, with their line separator, in several
+		 *            buffers which are read once.
+		 */
+		Result(String path, ByteBuffer[] lines, String jobId, int[] taskNumbers) {
+			this.path = path;
+			this.lines = lines;
+			this.jobId = jobId;
+			this.taskNumbers = taskNumbers;
+		}
+	}
+
+	/**
+	 * Get the path of a segment of a result file.
+	 *
+	 * @param path
+	 *            - Path of the first segment.
+	 * @param segment
+	 *            - Segment number.
+	 * @return path, with the segment number before its extension.
+	 */
+	static String segmentPath(String path, int segment) {
+		if (segment == 0) {
+			return path;
+		}
+		int dot = path.lastIndexOf('.');
+		if (dot <= Math.max(path.lastIndexOf('/'),
+				path.lastIndexOf(File.separatorChar))) {
+			return path + "." + segment;
+		}
+		return path.substring(0, dot) + "." + segment + path.substring(dot);
+	}
+
+	/**
+	 * Opened result file, written at the end of its last segment. The offset
+	 * is only read from the file system when the segment is opened.
+	 * <p>
+	 * If results are compressed, each segment is a gzip file, <i>name.result.gz
+	 * </i>. Its content is flushed at each batch, so that a segment cut by a
+	 * crash can be read up to its last batch; a compressed segment is never
+	 * appended to after a restart, nor after its file was closed.
+	 */
+	private class ResultFile {
+		private final String path;
+		/**
+		 * Time of the last append, in milliseconds.
+		 */
+		private long usedAt = System.currentTimeMillis();
+		private final ByteBuffer buffer = ByteBuffer
+				.allocateDirect(BUFFER_SIZE);
+		private int segment = 0;
+		private FileChannel channel;
+		/**
+		 * Bytes written in the current segment, buffered bytes excluded.
+		 */
+		private long offset;
+		/**
+		 * Compressor of the current segment, null if results are not
+		 * compressed.
+		 */
+		private final Deflater deflater;
+		private final CRC32 crc = new CRC32();
+		/**
+		 * Bytes given to the compressor in the current segment.
+		 */
+		private long inputSize;
+		/**
+		 * Bytes given to the compressor since it was last flushed, their
+		 * compressed size is not known yet.
+		 */
+		private long pendingSize;
+		private final byte[] input;
+		private final byte[] output;
+
+		ResultFile(String path) throws IOException {
+			this.path = path;
+			if (isCompressed) {
+				deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+				input = new byte[BUFFER_SIZE];
+				output = new byte[BUFFER_SIZE];
+			} else {
+				deflater = null;
+				input = null;
+				output = null;
+			}
+			// Restart after the last segment written
+			while (new File(segmentFile(segment + 1)).exists()) {
+				segment++;
+			}
+			openSegment();
+			if (isCompressed && offset > 0) {
+				channel.close();
+				segment++;
+				openSegment();
+			}
+		}
+
+		private String segmentFile(int segment) {
+			String file = segmentPath(path, segment);
+			return isCompressed ? file + ".gz" : file;
+		}
+
+		private void openSegment() throws IOException {
+			channel = FileChannel.open(Paths.get(segmentFile(segment)),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			offset = channel.size();
+			if (isCompressed && offset == 0) {
+				deflater.reset();
+				crc.reset();
+				inputSize = 0;
+				pendingSize = 0;
+				buffer.put(GZIP_HEADER);
+			}
+		}
+
+		/**
+		 * Append lines, in a new segment if current one would exceed
+		 * maxFileSize. Lines larger than the buffer are written directly.
+		 */
+		void append(ByteBuffer[] lines) throws IOException {
+			usedAt = System.currentTimeMillis();
+			long length = 0;
+			for (ByteBuffer line : lines) {
+				length += line.remaining();
+			}
+			long size = offset + buffer.position();
+			if (isCompressed) {
+				// Compressed size is only known once the compressor is flushed
+				long end = size + pendingSize + GZIP_END_SIZE + length;
+				if (maxFileSize > 0 && end > maxFileSize) {
+					drain();
+					size = offset + buffer.position();
+				}
+				size += GZIP_END_SIZE;
+			}
+			// A new compressed segment already holds its gzip header
+			boolean isEmpty = isCompressed ? inputSize == 0 : size == 0;
+			if (maxFileSize > 0 && !isEmpty && size + length > maxFileSize) {
+				close();
+				segment++;
+				openSegment();
+				logger.logInfos("New result segment " + segmentFile(segment));
+			}
+			if (maxFileSize > 0 && length > maxFileSize) {
+				logger.logWarning("A result of " + length
+						+ " bytes exceeds limit given in config file");
+			}
+			if (isCompressed) {
+				for (ByteBuffer line : lines) {
+					compress(line);
+				}
+				return;
+			}
+			if (length > buffer.remaining()) {
+				flush();
+			}
+			if (length > buffer.remaining()) {
+				for (ByteBuffer line : lines) {
+					write(line);
+				}
+			} else {
+				for (ByteBuffer line : lines) {
+					buffer.put(line);
+				}
+			}
+		}
+
+		/**
+		 * Give bytes to the compressor, by chunks: the compressor of Java 8
+		 * only reads arrays.
+		 */
+		private void compress(ByteBuffer line) throws IOException {
+			while (line.hasRemaining()) {
+				int length = Math.min(line.remaining(), input.length);
+				line.get(input, 0, length);
+				crc.update(input, 0, length);
+				inputSize += length;
+				pendingSize += length;
+				deflater.setInput(input, 0, length);
+				while (!deflater.needsInput()) {
+					deflate(Deflater.NO_FLUSH);
+				}
+			}
+		}
+
+		/**
+		 * Move compressed bytes to the buffer.
+		 *
+		 * @return False if compressor has no more bytes to give.
+		 */
+		private boolean deflate(int flush) throws IOException {
+			if (!buffer.hasRemaining()) {
+				writeBuffer();
+			}
+			int space = Math.min(output.length, buffer.remaining());
+			int length = deflater.deflate(output, 0, space, flush);
+			buffer.put(output, 0, length);
+			return length == space;
+		}
+
+		/**
+		 * Write buffered bytes, with the bytes held by the compressor.
+		 */
+		void flush() throws IOException {
+			if (isCompressed) {
+				drain();
+			}
+			writeBuffer();
+		}
+
+		/**
+		 * Move all bytes held by the compressor to the buffer.
+		 */
+		private void drain() throws IOException {
+			while (deflate(Deflater.SYNC_FLUSH)) {
+				// Until compressor is drained
+			}
+			pendingSize = 0;
+		}
+
+		private void writeBuffer() throws IOException {
+			buffer.flip();
+			write(buffer);
+			buffer.clear();
+		}
+
+		private void write(ByteBuffer bb) throws IOException {
+			while (bb.hasRemaining()) {
+				offset += channel.write(bb, offset);
+			}
+		}
+
+		void sync() throws IOException {
+			channel.force(false);
+		}
+
+		/**
+		 * Write buffered bytes and close the current segment. A compressed
+		 * segment gets its gzip trailer, it is complete.
+		 */
+		void close() throws IOException {
+			try {
+				if (isCompressed) {
+					deflater.finish();
+					while (!deflater.finished()) {
+						deflate(Deflater.NO_FLUSH);
+					}
+					if (buffer.remaining() < 8) {
+						writeBuffer();
+					}
+					buffer.order(ByteOrder.LITTLE_ENDIAN);
+					buffer.putInt((int) crc.getValue()).putInt((int) inputSize);
+					buffer.order(ByteOrder.BIG_ENDIAN);
+				}
+				writeBuffer();
+				if (fsyncPolicy == FsyncPolicy.BATCH) {
+					sync();
+				}
+			} finally {
+				channel.close();
+			}
+		}
+
+		/**
+		 * Close the current segment and free the compressor.
+		 */
+		void end() throws IOException {
+			try {
+				close();
+			} finally {
+				if (isCompressed) {
+					deflater.end();
+				}
+			}
+		}
+	}
+
+	/**
+	 * One writer thread with its queue and its opened files.
+	 */
+	private class Stage implements Runnable {
+		private final BlockingQueue<Result> queue;
+		private final Thread thread;
+		/**
+		 * Opened files, least recently written first.
+		 */
+		private final LinkedHashMap<String, ResultFile> files = new LinkedHashMap<>(
+				16, 0.75f, true);
+
+		Stage(int id, int queueSize) {
+			queue = new ArrayBlockingQueue<>(queueSize);
+			thread = new Thread(this, "result-writer-" + id);
+		}
+
+		@Override
+		public void run() {
+			List<Result> batch = new ArrayList<>(MAX_BATCH);
+			List<Result> saved = new ArrayList<>(MAX_BATCH);
+			HashMap<ResultFile, List<Result>> written = new HashMap<>();
+			try {
+				while (!isClosed || !queue.isEmpty()) {
+					Result result = queue.poll(POLL_TIMEOUT,
+							TimeUnit.MILLISECONDS);
+					if (result == null) {
+						closeIdleFiles();
+						continue;
+					}
+					batch.add(result);
+					queue.drainTo(batch, MAX_BATCH - 1);
+					for (Result r : batch) {
+						ResultFile file = append(r);
+						if (file == null) {
+							lose(r);
+						} else {
+							written.computeIfAbsent(file,
+									f -> new ArrayList<>()).add(r);
+						}
+					}
+					commit(written, saved);
+					long now = System.nanoTime();
+					for (Result r : saved) {
+						latency.observeNanos(now - r.queuedAt);
+					}
+					save(saved);
+					closeIdleFiles();
+					batch.clear();
+					saved.clear();
+					written.clear();
+				}
+			} catch (InterruptedException e) {
+				// Stop now
+			} finally {
+				closeFiles();
+			}
+		}
+
+		private ResultFile append(Result result) {
+			try {
+				ResultFile file = open(result.path);
+				file.append(result.lines);
+				return file;
+			} catch (IOException e) {
+				logger.logError("Cannot write result in " + result.path, e);
+				return null;
+			}
+		}
+
+		private ResultFile open(String path) throws IOException {
+			ResultFile file = files.get(path);
+			if (file == null) {
+				file = new ResultFile(path);
+				files.put(path, file);
+			}
+			return file;
+		}
+
+		/**
+		 * Flush files written in the batch, and force them to the disk if
+		 * policy says so.
+		 *
+		 * @param written
+		 *            - Results of the batch, by file.
+		 * @param saved
+		 *            - Where results of files flushed are added.
+		 */
+		private void commit(Map<ResultFile, List<Result>> written,
+				List<Result> saved) {
+			written.forEach((file, results) -> {
+				try {
+					file.flush();
+					if (fsyncPolicy == FsyncPolicy.BATCH) {
+						file.sync();
+					}
+					saved.addAll(results);
+				} catch (IOException e) {
+					logger.logError("Cannot save results in " + file.path, e);
+					results.forEach(this::lose);
+				}
+			});
+		}
+
+		/**
+		 * Make pending again the tasks of a result which is not saved.
+		 */
+		private void lose(Result result) {
+			int reopened = tasksManager.tasksLost(result.jobId,
+					result.taskNumbers);
+			logger.logWarning(reopened + " task(s) of job " + result.jobId
+					+ " will be computed again");
+		}
+
+		/**
+		 * Save in the journal the tasks of written results.
+		 */
+		private void save(List<Result> saved) {
+			if (journal == null || saved.isEmpty()) {
+				return;
+			}
+			try {
+				for (Result result : saved) {
+					journal.append(result.jobId, result.taskNumbers);
+				}
+				journal.commit();
+			} catch (IOException e) {
+				logger.logError("Cannot save progress", e);
+			}
+		}
+
+		/**
+		 * Close files idle for FILE_IDLE_TIMEOUT, then least recently written
+		 * files until MAX_OPEN_FILES are open. Files are flushed, no batch is
+		 * in progress.
+		 */
+		private void closeIdleFiles() {
+			long idleBefore = System.currentTimeMillis() - FILE_IDLE_TIMEOUT;
+			Iterator<ResultFile> iterator = files.values().iterator();
+			while (iterator.hasNext()) {
+				ResultFile file = iterator.next();
+				if (files.size() <= MAX_OPEN_FILES && file.usedAt > idleBefore) {
+					// Next files were written later
+					return;
+				}
+				iterator.remove();
+				try {
+					file.end();
+				} catch (IOException e) {
+					logger.logError("Cannot close result file", e);
+				}
+			}
+		}
+
+		private void closeFiles() {
+			for (ResultFile file : files.values()) {
+				try {
+					file.end();
+				} catch (IOException e) {
+					logger.logError("Cannot close result file", e);
+				}
+			}
+			files.clear();
+		}
+	}
+}
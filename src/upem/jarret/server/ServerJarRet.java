@@ -1,47 +1,96 @@
 package upem.jarret.server;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import upem.jarret.JarRetCodec;
 import upem.jarret.task.NoTaskException;
-import upem.jarret.task.TaskServer;
+import upem.jarret.task.TaskAssignment;
 import upem.jarret.task.TasksManager;
 import upem.logger.Logger;
+import upem.net.tcp.http.ContentEncoding;
 import upem.net.tcp.http.HTTPException;
 import upem.net.tcp.http.HTTPHeader;
-import upem.net.tcp.http.HTTPReaderServer;
-import upem.net.tcp.http.HTTPStateException;
+import upem.net.tcp.http.HTTPRequestParser;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class ServerJarRet {
 	/**
 	 * Milliseconds that client can be connected without being active.
 	 */
 	private static final long TIMEOUT = 10000;
+	/**
+	 * Milliseconds between two attempts to queue results when result queue
+	 * is full.
+	 */
+	private static final long RETRY_TIMEOUT = 10;
+	/**
+	 * Milliseconds between two checks of idle clients by a reactor.
+	 */
+	private static final long SWEEP_INTERVAL = 1000;
 	private static final int BUFFER_SIZE = 4096;
+	/**
+	 * Contents larger than this number of bytes are spooled to a file as they
+	 * arrive, instead of being kept in the buffer of the connection.
+	 */
+	private static final int SPOOL_THRESHOLD = 256 * 1024;
 	private static final Charset CHARSET = Charset.forName("UTF-8");
+	/**
+	 * Field of task responses listing optional requests handled by server.
+	 */
+	private static final String SUPPORTS_FIELD = "JarRet-Supports";
+	/**
+	 * Request posting an answer, responded by the next task.
+	 */
+	private static final String ANSWER_AND_TASK = "AnswerAndTask";
+	/**
+	 * Paths of the metrics request: JarRet style, or usual scrape paths.
+	 */
+	private static final List<String> METRICS_PATHS = Arrays.asList(
+			"Metrics", "metrics", "/Metrics", "/metrics");
+	/**
+	 * Field of task requests giving the number of tasks wanted.
+	 */
+	private static final String BATCH_SIZE_FIELD = "Batch-Size";
+	/**
+	 * Max number of tasks leased by one request.
+	 */
+	private static final int MAX_BATCH_SIZE = 64;
+	private static final String CONTENT_ENCODING_FIELD = "Content-Encoding";
+	private static final String ACCEPT_ENCODING_FIELD = "Accept-Encoding";
+	/**
+	 * Responses larger than this number of bytes are compressed, if the
+	 * client accepts it.
+	 */
+	private static final int COMPRESSION_THRESHOLD = 1024;
 
 	public static void main(String[] args) {
 		if (1 < args.length) {
@@ -81,10 +130,6 @@ public class ServerJarRet {
 	 * Logger, used to display all infos, warnings and errors.
 	 */
 	private final Logger logger;
-	/**
-	 * Max result file size (in bytes).
-	 */
-	private final long maxFileSize;
 	/**
 	 * Number of seconds that clients must wait when server has no more tasks to
 	 * send.
@@ -94,62 +139,344 @@ public class ServerJarRet {
 	 * Path to folder where result files are written.
 	 */
 	private final String pathResults;
+	/**
+	 * Max size of the content of a request, in bytes.
+	 */
+	private final int maxContentLength;
+	/**
+	 * Append results in result files.
+	 */
+	private final ResultWriter resultWriter;
+	/**
+	 * Tasks done, saved across restarts. Null if not configured.
+	 */
+	private final ProgressJournal journal;
+	/**
+	 * Counters and latencies, sent in response to GET Metrics.
+	 */
+	private final ServerMetrics metrics;
+	/**
+	 * Buffers of the connections, borrowed while a request is handled.
+	 */
+	private final BufferPool bufferPool = new BufferPool();
 
+	/**
+	 * Selector of the accepting thread.
+	 */
 	private final Selector selector;
 	private final ServerSocketChannel serverSocketChannel;
 	private final Thread serverThread;
+	/**
+	 * Selector loops serving the accepted clients.
+	 */
+	private final Reactor[] reactors;
+	/**
+	 * Index of the reactor receiving the next client.
+	 */
+	private int nextReactor = 0;
+	/**
+	 * Number of threads (acceptor and reactors) still running.
+	 */
+	private final AtomicInteger runningThreads = new AtomicInteger();
 	private final AtomicBoolean isRunning = new AtomicBoolean(false);
+	/**
+	 * Released once all threads are stopped.
+	 */
+	private final CountDownLatch stopped = new CountDownLatch(1);
 	private final SocketAddress address;
 	private final TasksManager taskManager;
 
 	/**
 	 * True if server received a shutdown signal.
 	 */
-	private boolean isShutdown = false;
+	private volatile boolean isShutdown = false;
 
 	private ServerJarRet(Map<String, Object> config) throws IOException {
 		int port;
 		String logInfoPath;
 		String logWarningPath;
 		String logErrorPath;
+		Logger.Level logLevel;
+		int selectorCount;
+		long maxFileSize;
+		int resultWriterCount;
+		int resultQueueSize;
+		ResultWriter.FsyncPolicy fsyncPolicy;
+		boolean isResultCompressed;
+		int leaseTimeout;
+		int endGamePercentile;
+		String journalPath;
 		try {
 			port = (int) config.get("ServerPort");
 			logInfoPath = (String) config.get("LogInfoPath");
 			logWarningPath = (String) config.get("LogWarningPath");
 			logErrorPath = (String) config.get("LogErrorPath");
+			logLevel = Logger.Level.valueOf(((String) config.getOrDefault(
+					"LogLevel", "info")).toUpperCase());
 			this.pathResults = (String) config.get("ResultPath");
-			this.maxFileSize = new Long((int) config.get("MaxFileSize"));
+			// MaxFileSize: bytes per result segment, 0 for a single file
+			maxFileSize = new Long((int) config.get("MaxFileSize"));
 			this.ComeBackInSeconds = (int) config.get("COMBEBACK_IN_SECONDS");
+			selectorCount = (int) config.getOrDefault("SelectorCount", 0);
+			resultWriterCount = (int) config.getOrDefault("ResultWriterCount",
+					1);
+			resultQueueSize = (int) config.getOrDefault("ResultQueueSize",
+					1024);
+			fsyncPolicy = ResultWriter.FsyncPolicy.parse((String) config
+					.getOrDefault("ResultFsync", "never"));
+			String compression = (String) config.getOrDefault(
+					"ResultCompression", "none");
+			if (!compression.equalsIgnoreCase("none")
+					&& !compression.equalsIgnoreCase("gzip")) {
+				throw new IllegalArgumentException(
+						"ResultCompression must be none or gzip");
+			}
+			isResultCompressed = compression.equalsIgnoreCase("gzip");
+			leaseTimeout = (int) config.getOrDefault("LeaseTimeout", 0);
+			endGamePercentile = (int) config.getOrDefault("EndGamePercentile",
+					0);
+			journalPath = (String) config.get("JournalPath");
+			// MaxContentLength missing: answers up to 64 MB
+			maxContentLength = (int) config.getOrDefault("MaxContentLength",
+					64 * 1024 * 1024);
 		} catch (Exception e) {
 			throw new IllegalStateException(
 					"JarRetConfig.json is not a valid file", e);
 		}
 
 		logger = Logger.construct(logInfoPath, logWarningPath, logErrorPath);
+		// LogLevel missing: everything is logged
+		logger.setLevel(logLevel);
 		selector = Selector.open();
 		serverSocketChannel = ServerSocketChannel.open();
 		address = new InetSocketAddress(port);
-		taskManager = new TasksManager();
+		// LeaseTimeout is in seconds, missing or 0 for no limit.
+		// EndGamePercentile missing or 0: tasks are never given twice.
+		taskManager = new TasksManager(leaseTimeout * 1000L,
+				endGamePercentile);
+		// Check leases at least once per lease timeout
+		long acceptTimeout = leaseTimeout > 0 ? Math.min(TIMEOUT,
+				leaseTimeout * 1000L) : TIMEOUT;
+		// JournalPath missing: progress is lost on restart
+		journal = journalPath == null ? null : new ProgressJournal(
+				journalPath, fsyncPolicy == ResultWriter.FsyncPolicy.BATCH);
+		// Clients are counted once reactors are created
+		metrics = new ServerMetrics(taskManager, this::clientCount);
+		resultWriter = new ResultWriter(resultWriterCount, resultQueueSize,
+				fsyncPolicy, maxFileSize, isResultCompressed, journal,
+				taskManager, metrics.writeLatency, logger);
+
+		// SelectorCount missing or 0: one selector per processor
+		if (selectorCount <= 0) {
+			selectorCount = Runtime.getRuntime().availableProcessors();
+		}
+		reactors = new Reactor[selectorCount];
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i] = new Reactor(i);
+		}
 
 		this.serverThread = new Thread(() -> {
 			try {
 				Set<SelectionKey> selectedKeys = selector.selectedKeys();
-				logger.logInfos("Server started");
+				logger.logInfos("Server started with " + reactors.length
+						+ " selector(s)");
+				while (!Thread.interrupted() && !isShutdown) {
+					try {
+						selector.select(acceptTimeout);
+					} catch (IOException e) {
+						e.printStackTrace(System.err);
+					}
+					processSelectedKeys(selectedKeys);
+					selectedKeys.clear();
+					expireLeases();
+				}
+			} finally {
+				threadStopped();
+			}
+		}, "acceptor");
+	}
+
+	/**
+	 * Selector loop serving part of the clients. The acceptor gives new
+	 * clients to reactors in turn.
+	 */
+	private class Reactor implements Runnable {
+		private final Selector selector;
+		private final Thread thread;
+		/**
+		 * Clients accepted but not registered in selector yet.
+		 */
+		private final Queue<SocketChannel> newClients = new ConcurrentLinkedQueue<>();
+		/**
+		 * Clients waiting for room in the result queue. They are not read
+		 * until their result is queued.
+		 */
+		private final Queue<SelectionKey> parked = new ArrayDeque<>();
+		/**
+		 * Last time idle clients were checked.
+		 */
+		private long lastSweep = System.currentTimeMillis();
+
+		Reactor(int id) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "reactor-" + id);
+		}
+
+		/**
+		 * Give a new client to this reactor. Can be called from any thread.
+		 * 
+		 * @param sc
+		 *            - Accepted channel, in non blocking mode.
+		 */
+		void register(SocketChannel sc) {
+			newClients.add(sc);
+			selector.wakeup();
+		}
+
+		/**
+		 * Get number of clients served by this reactor.
+		 * 
+		 * @return number of registered channels.
+		 */
+		int clientCount() {
+			return selector.keys().size();
+		}
+
+		/**
+		 * Stop reading a client until its pending result is queued.
+		 * 
+		 * @param key
+		 *            - Key of the client, registered in this reactor.
+		 */
+		void park(SelectionKey key) {
+			key.interestOps(0);
+			parked.add(key);
+		}
+
+		@Override
+		public void run() {
+			try {
+				Set<SelectionKey> selectedKeys = selector.selectedKeys();
 				while (!Thread.interrupted()
-						&& (!isShutdown || selectedKeys.size() > 1)) {
+						&& !(isShutdown && selector.keys().isEmpty() && newClients
+								.isEmpty())) {
 					try {
-						selector.select(TIMEOUT);
+						// After shutdown, closed keys are removed at next select
+						selector.select(parked.isEmpty() && !isShutdown
+								? SWEEP_INTERVAL : RETRY_TIMEOUT);
 					} catch (IOException e) {
 						e.printStackTrace(System.err);
 					}
+					registerNewClients();
+					retryParked();
 					processSelectedKeys(selectedKeys);
 					selectedKeys.clear();
+					long now = System.currentTimeMillis();
+					if (isShutdown || now - lastSweep >= SWEEP_INTERVAL) {
+						lastSweep = now;
+						sweep();
+					}
 				}
 			} finally {
-				isRunning.set(false);
-				logger.logInfos("Server stopped");
+				threadStopped();
 			}
-		});
+		}
+
+		private void registerNewClients() {
+			SocketChannel sc;
+			while ((sc = newClients.poll()) != null) {
+				try {
+					sc.register(selector, SelectionKey.OP_READ,
+							new Attachment(this));
+				} catch (ClosedChannelException e) {
+					// Client already gone
+				}
+			}
+		}
+
+		/**
+		 * Close clients inactive for more than TIMEOUT, whether they were
+		 * selected or not. After shutdown, clients between two requests are
+		 * closed too: their leased tasks are given back. Parked clients wait
+		 * for the result queue, not for themselves: they are kept.
+		 */
+		private void sweep() {
+			for (SelectionKey key : selector.keys()) {
+				Attachment attachment = (Attachment) key.attachment();
+				if (!key.isValid() || attachment == null
+						|| attachment.result != null) {
+					continue;
+				}
+				if (attachment.isTimeOut()) {
+					metrics.timeouts.increment();
+					logger.logInfos("Timed out");
+					close(key);
+				} else if (isShutdown && attachment.isIdle()) {
+					close(key);
+				}
+			}
+		}
+
+		/**
+		 * Queue pending results, in the order clients were parked.
+		 */
+		private void retryParked() {
+			SelectionKey key;
+			while ((key = parked.peek()) != null) {
+				Attachment attachment = (Attachment) key.attachment();
+				if (!key.isValid()) {
+					parked.poll();
+					loseResult(attachment);
+					continue;
+				}
+				if (!resultWriter.offer(attachment.result)) {
+					// Still full
+					return;
+				}
+				parked.poll();
+				attachment.result = null;
+				// Time parked is not inactivity of the client
+				attachment.setActive();
+				try {
+					acknowledgeAnswer(attachment);
+					logger.logInfos("Sending response...");
+					key.interestOps(SelectionKey.OP_WRITE);
+				} catch (IOException e) {
+					close(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Give to other clients the tasks not answered in time. Called by the
+	 * acceptor, at least every TIMEOUT.
+	 */
+	private void expireLeases() {
+		int expired = taskManager.expireLeases();
+		metrics.expirations.add(expired);
+		if (expired > 0) {
+			logger.logWarning(expired + " task(s) not answered in time");
+		}
+	}
+
+	/**
+	 * Call this when acceptor or a reactor ends.
+	 */
+	private void threadStopped() {
+		if (runningThreads.decrementAndGet() == 0) {
+			resultWriter.close();
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (IOException e) {
+					logger.logError("Cannot save progress", e);
+				}
+			}
+			isRunning.set(false);
+			logger.logInfos("Server stopped");
+			stopped.countDown();
+		}
 	}
 
 	/**
@@ -172,6 +499,10 @@ public class ServerJarRet {
 		server.serverSocketChannel.register(server.selector,
 				SelectionKey.OP_ACCEPT);
 
+		if (server.journal != null) {
+			server.restoreProgress();
+		}
+
 		try {
 			server.taskManager.addTaskFromFile(confTaskPath);
 		} catch (FileNotFoundException e) {
@@ -182,6 +513,20 @@ public class ServerJarRet {
 		return server;
 	}
 
+	/**
+	 * Mark as done the tasks saved in the journal by previous runs.
+	 */
+	private void restoreProgress() throws IOException {
+		long start = System.currentTimeMillis();
+		Map<String, BitSet> done = journal.replay();
+		taskManager.restore(done);
+		long count = done.values().stream().mapToLong(BitSet::cardinality)
+				.sum();
+		logger.logInfos("Progress restored: " + count + " task(s) done in "
+				+ done.size() + " job(s), in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
 	/**
 	 * Start the server.
 	 * 
@@ -199,6 +544,11 @@ public class ServerJarRet {
 		} catch (IllegalAccessException e) {
 			logger.logError("Result folder is not valid", e);
 		}
+		resultWriter.start();
+		runningThreads.set(reactors.length + 1);
+		for (Reactor reactor : reactors) {
+			reactor.thread.start();
+		}
 		serverThread.start();
 	}
 
@@ -209,12 +559,9 @@ public class ServerJarRet {
 	 */
 	private static Map<String, Object> readConfig(String path) {
 		Map<String, Object> map = new HashMap<String, Object>();
-		ObjectMapper mapper = new ObjectMapper();
 		File config = new File(path);
 		try {
-			map = mapper.readValue(config,
-					new TypeReference<HashMap<String, Object>>() {
-					});
+			map = JarRetCodec.MAP_READER.readValue(config);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -254,7 +601,8 @@ public class ServerJarRet {
 					continue;
 				}
 				Attachment attachment = ((Attachment) key.attachment());
-				if (attachment != null) {
+				if (attachment != null
+						&& logger.isEnabled(Logger.Level.INFO)) {
 					logger.logInfos("Processing with "
 							+ ((SocketChannel) key.channel())
 									.getRemoteAddress());
@@ -272,14 +620,10 @@ public class ServerJarRet {
 				if (key.isReadable()) {
 					doRead(key);
 				}
-				// Check for time out
-				if (attachment != null && attachment.isTimeOut()) {
-					logger.logInfos("Timed out");
-					throw new IllegalStateException("timed out");
-				}
 			} catch (IOException e) {
 				close(key);
 			} catch (Exception e) {
+				metrics.errors.increment();
 				try {
 					logger.logWarning(
 							"An error with one client ("
@@ -296,9 +640,59 @@ public class ServerJarRet {
 	}
 
 	private static class Attachment {
-		final ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
+		/**
+		 * Requests received. The first one starts at index 0, pipelined ones
+		 * follow it.
+		 */
+		ByteBuffer bb;
+		/**
+		 * Response being sent.
+		 */
+		ByteBuffer out;
+		/**
+		 * Content of the request being read, if it is too large for bb.
+		 */
+		BodySpool spool;
+		/**
+		 * State of the request being read in bb.
+		 */
+		final HTTPRequestParser request = new HTTPRequestParser(
+				BATCH_SIZE_FIELD, CONTENT_ENCODING_FIELD, ACCEPT_ENCODING_FIELD);
+		final Reactor reactor;
 		long lastActivity = System.currentTimeMillis();
-		TaskServer task;
+		/**
+		 * Tasks leased to the client and not answered yet.
+		 */
+		final List<TaskAssignment> tasks = new ArrayList<>();
+		/**
+		 * True if client asked to close connection after the response.
+		 */
+		boolean closeAfterResponse = false;
+		/**
+		 * True if the answer being handled must be responded by a new task.
+		 */
+		boolean isTaskRequested = false;
+		/**
+		 * Number of tasks asked by the client, 0 if it asked a single task
+		 * without Batch-Size field.
+		 */
+		int batchSize = 0;
+		/**
+		 * Coding accepted by the client for the response.
+		 */
+		ContentEncoding responseEncoding = ContentEncoding.IDENTITY;
+		/**
+		 * Result not queued yet because result queue is full.
+		 */
+		ResultWriter.Result result;
+		/**
+		 * Time the request being handled was complete, in nanoseconds.
+		 */
+		long requestTime;
+
+		Attachment(Reactor reactor) {
+			this.reactor = reactor;
+		}
 
 		/**
 		 * Mark that key is active at this moment.
@@ -315,6 +709,14 @@ public class ServerJarRet {
 		boolean isTimeOut() {
 			return System.currentTimeMillis() - lastActivity > TIMEOUT;
 		}
+
+		/**
+		 * @return True if no request is being read nor answered.
+		 */
+		boolean isIdle() {
+			return bb == null && out == null && spool == null
+					&& result == null;
+		}
 	}
 
 	/**
@@ -336,8 +738,10 @@ public class ServerJarRet {
 		if (sc == null)
 			return; // In case, the selector gave a bad hint
 		sc.configureBlocking(false);
-		sc.register(selector, SelectionKey.OP_READ, new Attachment());
+		metrics.accepts.increment();
 		logger.logInfos("Connected to: " + sc.getRemoteAddress());
+		reactors[nextReactor].register(sc);
+		nextReactor = (nextReactor + 1) % reactors.length;
 	}
 
 	/**
@@ -349,36 +753,69 @@ public class ServerJarRet {
 	 *             - If some I/O error occurs.
 	 */
 	private void doRead(SelectionKey key) throws IOException {
-		// Client requests a new task
 		Attachment attachment = (Attachment) key.attachment();
 		SocketChannel sc = (SocketChannel) key.channel();
-		// Server will exit when reading client's task answer
-		HTTPReaderServer reader = new HTTPReaderServer(sc, attachment.bb);
-		if (0 == ((SocketChannel) key.channel()).read(attachment.bb)) {
+		if (attachment.bb == null) {
+			attachment.bb = bufferPool.acquire(BUFFER_SIZE);
+		}
+		int read = sc.read(attachment.bb);
+		if (-1 == read) {
+			close(key);
+			return;
+		}
+		if (0 == read) {
+			releaseIdleBuffer(attachment);
 			return;
 		}
+		metrics.bytesIn.add(read);
 		attachment.setActive();
-		HTTPHeader header;
-		try {
-			header = reader.readHeader();
-		} catch (HTTPStateException e) {
-			// HTTP header is not complete
+		processRequest(key);
+	}
+
+	/**
+	 * Answer the first request of the buffer if it is complete. Requests
+	 * pipelined after it stay in the buffer until the response is sent, so
+	 * that responses are sent in order.
+	 * 
+	 * @param key
+	 *            - selected key containing a SocketChannel.
+	 * @throws IOException
+	 *             - If some I/O error occurs.
+	 */
+	private void processRequest(SelectionKey key) throws IOException {
+		Attachment attachment = (Attachment) key.attachment();
+		HTTPRequestParser request = attachment.request;
+		if (attachment.bb == null) {
+			// Nothing received since last request
+			key.interestOps(SelectionKey.OP_READ);
 			return;
+		}
+		try {
+			if (!readRequest(attachment)) {
+				// Not all request yet
+				key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
 		} catch (HTTPException e) {
-			logger.logWarning("HTTP header is not valid for ");
+			metrics.errors.increment();
+			logger.logWarning("HTTP request is not valid for "
+					+ ((SocketChannel) key.channel()).getRemoteAddress(), e);
 			close(key);
 			return;
 		}
 
-		// Check for request content
-		if (attachment.bb.position() < header.getContentLength()) {
-			// Not all response yet.
-			return;
+		String method = request.getMethod();
+		String path = request.getPath();
+		boolean isAnswered = true;
+		attachment.requestTime = System.nanoTime();
+		if (attachment.out == null) {
+			attachment.out = bufferPool.acquire(BUFFER_SIZE);
 		}
+		attachment.batchSize = getBatchSize(request);
+		attachment.responseEncoding = ContentEncoding.negotiate(request
+				.getField(ACCEPT_ENCODING_FIELD));
 
-		String[] tokens = header.getResponse().split(" ");
-
-		if (tokens[0].equals("GET") && tokens[1].equals("Task")) {
+		if (method.equals("GET") && path.equals("Task")) {
 			// Do not accept new request after shutdown command
 			if (isShutdown) {
 				logger.logInfos("New task request refused");
@@ -386,157 +823,501 @@ public class ServerJarRet {
 				return;
 			}
 			logger.logInfos("Task request received");
-			prepareNewTask(key);
-		} else if (tokens[0].equals("POST") && tokens[1].equals("Answer")) {
+			prepareNewTask(attachment);
+		} else if (method.equals("POST")
+				&& (path.equals("Answer") || path.equals(ANSWER_AND_TASK))) {
 			logger.logInfos("Answer received");
-			computeAnswer(key);
+			attachment.isTaskRequested = path.equals(ANSWER_AND_TASK);
+			// False: response is sent once result is queued
+			isAnswered = computeAnswer(key);
+		} else if (method.equals("GET") && METRICS_PATHS.contains(path)) {
+			setBufferText(attachment, metrics.scrape());
+		} else {
+			metrics.errors.increment();
+			logger.logWarning("Unknown request: " + method + " " + path);
+			addAnswerHeader(attachment.out, "400 Bad Request");
+		}
+		attachment.closeAfterResponse = !request.isKeepAlive();
+		consumeRequest(attachment);
+		if (isAnswered) {
+			logger.logInfos("Sending response...");
+			key.interestOps(SelectionKey.OP_WRITE);
 		}
-		logger.logInfos("Sending response...");
-		key.interestOps(SelectionKey.OP_WRITE);
 	}
 
-	private void computeAnswer(SelectionKey key) {
+	/**
+	 * Parse bytes received since last call. A large content is moved from the
+	 * buffer to a spool file as it arrives; other requests are kept in the
+	 * buffer, which grows up to BufferPool.MAX_SIZE.
+	 * 
+	 * @param attachment
+	 *            - Attachment of the client, with received bytes in bb.
+	 * @return True if the request is complete.
+	 * @throws HTTPException
+	 *             - If the request is ill-formed or too long.
+	 * @throws IOException
+	 *             - If the content cannot be spooled.
+	 */
+	private boolean readRequest(Attachment attachment) throws IOException {
+		HTTPRequestParser request = attachment.request;
+		if (attachment.spool == null) {
+			if (request.parse(attachment.bb)) {
+				return true;
+			}
+			if (request.getBodyStart() < 0
+					|| request.getContentLength() <= SPOOL_THRESHOLD) {
+				if (!attachment.bb.hasRemaining()) {
+					HTTPException.ensure(
+							attachment.bb.capacity() < BufferPool.MAX_SIZE,
+							"Request is too long");
+					attachment.bb = bufferPool.grow(attachment.bb,
+							attachment.bb.capacity() * 2);
+				}
+				return false;
+			}
+			HTTPException.ensure(
+					request.getContentLength() <= maxContentLength,
+					"Content is too long");
+			attachment.spool = new BodySpool(pathResults,
+					request.getContentLength());
+			// The header is removed from the buffer with the content
+			attachment.spool.transfer(attachment.bb, request.getBodyStart());
+		} else {
+			attachment.spool.transfer(attachment.bb, 0);
+		}
+		releaseIdleBuffer(attachment);
+		return attachment.spool.isComplete();
+	}
+
+	/**
+	 * @return Number of tasks asked by the request, at most MAX_BATCH_SIZE, 0
+	 *         if request has no valid Batch-Size field.
+	 */
+	private static int getBatchSize(HTTPRequestParser request) {
+		String value = request.getField(BATCH_SIZE_FIELD);
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Math.min(MAX_BATCH_SIZE, Integer.parseInt(value)));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Remove the answered request from the buffer, keep the following bytes.
+	 */
+	private void consumeRequest(Attachment attachment) throws IOException {
+		if (attachment.spool != null) {
+			// Request was already removed from the buffer
+			attachment.spool.close();
+			attachment.spool = null;
+			attachment.request.reset();
+			return;
+		}
+		ByteBuffer bb = attachment.bb;
+		bb.flip();
+		bb.position(attachment.request.getRequestEnd());
+		bb.compact();
+		attachment.request.reset();
+		releaseIdleBuffer(attachment);
+	}
+
+	/**
+	 * Give back the input buffer if no byte is waiting in it.
+	 */
+	private void releaseIdleBuffer(Attachment attachment) {
+		if (attachment.bb != null && attachment.bb.position() == 0) {
+			bufferPool.release(attachment.bb);
+			attachment.bb = null;
+		}
+	}
+
+	/**
+	 * Read answer of the client and queue its result.
+	 * 
+	 * @param key
+	 *            - Key of the client.
+	 * @return False if result queue is full, client is parked until its
+	 *         result is queued.
+	 */
+	private boolean computeAnswer(SelectionKey key) throws IOException {
 		Attachment attachment = (Attachment) key.attachment();
-		attachment.bb.flip();
-		String json = CHARSET.decode(attachment.bb).toString();
-		Map<String, Object> map = new HashMap<String, Object>();
-		ObjectMapper mapper = new ObjectMapper();
+		ByteBuffer content = attachment.bb;
+		int start = attachment.request.getBodyStart();
+		int end = attachment.request.getRequestEnd();
+		if (attachment.spool != null) {
+			content = attachment.spool.map();
+			start = 0;
+			end = content.limit();
+		}
+		ContentEncoding encoding;
 		try {
-			// convert JSON string to Map
-			map = mapper.readValue(json,
-					new TypeReference<HashMap<String, Object>>() {
-					});
-			attachment.bb.clear();
-			if (!validResult(map)) {
-				addAnswerHeader(attachment.bb, "400 Bad Request");
+			encoding = ContentEncoding.parse(attachment.request
+					.getField(CONTENT_ENCODING_FIELD));
+		} catch (HTTPException e) {
+			metrics.errors.increment();
+			addAnswerHeader(attachment.out, "415 Unsupported Media Type");
+			logger.logWarning("Result from "
+					+ ((SocketChannel) key.channel()).getRemoteAddress()
+					+ " has an unsupported coding.");
+			return true;
+		}
+		Answer answer;
+		boolean isMapped = attachment.spool != null;
+		// Buffer of the pool holding the decoded content
+		ByteBuffer decoded = null;
+		try {
+			if (encoding != ContentEncoding.IDENTITY) {
+				content = decodeContent(content, start, end, encoding);
+				start = 0;
+				end = content.limit();
+				// Mapped spools are read-only, buffers of the pool are not
+				isMapped = content.isReadOnly();
+				decoded = isMapped ? null : content;
+			}
+			answer = Answer.read(content, start, end);
+		} catch (IOException e) {
+			// Not valid JSON, not valid UTF-8 or not valid coding
+			answer = null;
+		}
+		try {
+			if (answer == null) {
+				metrics.errors.increment();
+				addAnswerHeader(attachment.out, "400 Bad Request");
 				logger.logWarning("Result from "
 						+ ((SocketChannel) key.channel()).getRemoteAddress()
 						+ " is not valid json.");
-				return;
+				return true;
 			}
 
-			try {
-				saveResult(key, map);
-			} catch (IOException e) {
-				logger.logError("Cannot write result", e);
+			metrics.answers.increment();
+			// Only first answers are written, a task may be computed twice
+			int[] taskNumbers = completeTasks(attachment, answer);
+			int[] saved = Arrays.stream(taskNumbers).filter(n -> n >= 0)
+					.toArray();
+			int dropped = taskNumbers.length - saved.length;
+			if (dropped > 0) {
+				logger.logInfos(dropped + " duplicate result(s) from "
+						+ ((SocketChannel) key.channel()).getRemoteAddress()
+						+ " dropped");
+			}
+			if (saved.length == 0) {
+				acknowledgeAnswer(attachment);
+				return true;
+			}
+			String prefix = getResultPrefix(key, answer);
+			ResultWriter.Result result;
+			if (isMapped) {
+				// Results are written from the mapped spool, without a copy
+				result = new ResultWriter.Result(getResultPath(answer),
+						answer.toResultBuffers(prefix, taskNumbers),
+						answer.getJobId(), saved);
+			} else {
+				// Copy results, the buffer is reused
+				result = new ResultWriter.Result(getResultPath(answer),
+						answer.toResultLines(prefix, taskNumbers),
+						answer.getJobId(), saved);
+			}
+			metrics.results.add(result.taskNumbers.length);
+			if (!resultWriter.offer(result)) {
+				logger.logWarning("Result queue is full");
+				attachment.result = result;
+				attachment.reactor.park(key);
+				return false;
+			}
+			acknowledgeAnswer(attachment);
+			return true;
+		} finally {
+			if (decoded != null) {
+				bufferPool.release(decoded);
 			}
-			attachment.task = null;
-			addAnswerHeader(attachment.bb, "200 OK");
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
 	}
 
-	private boolean validResult(Map<String, Object> map) {
-		String requiredFields[] = { "JobTaskNumber", "WorkerVersionNumber",
-				"WorkerURL", "WorkerClassName", "JobId", "ClientId" };
-		for (String field : requiredFields) {
-			if (!map.containsKey(field)) {
-				return false;
+	/**
+	 * Decode a content by chunks. As a request, a decoded content is kept in a
+	 * buffer of the pool up to SPOOL_THRESHOLD bytes; a larger one is decoded
+	 * to a spool file, mapped once complete.
+	 * 
+	 * @param bb
+	 *            - Buffer containing the content.
+	 * @param start
+	 *            - Index of the first byte of the content.
+	 * @param end
+	 *            - Index following the last byte of the content.
+	 * @param encoding
+	 *            - Coding of the content.
+	 * @return Decoded content from index 0, in a buffer to give back to the
+	 *         pool, or in a read-only mapping.
+	 * @throws IOException
+	 *             - If content is not valid for its coding, or longer than
+	 *             maxContentLength once decoded.
+	 */
+	private ByteBuffer decodeContent(ByteBuffer bb, int start, int end,
+			ContentEncoding encoding) throws IOException {
+		ByteBuffer content = bb.duplicate();
+		content.limit(end).position(start);
+		byte[] chunk = new byte[BUFFER_SIZE];
+		ByteBuffer decoded = bufferPool.acquire(BUFFER_SIZE);
+		BodySpool spool = null;
+		try (InputStream decoder = encoding.decode(new ByteBufferInputStream(
+				content))) {
+			int read;
+			int length = 0;
+			while ((read = decoder.read(chunk)) != -1) {
+				HTTPException.ensure(read <= maxContentLength - length,
+						"Decoded content is too long");
+				length += read;
+				if (spool == null && decoded.remaining() < read) {
+					if (length <= SPOOL_THRESHOLD) {
+						decoded = bufferPool.grow(decoded,
+								decoded.capacity() * 2);
+					} else {
+						// Bytes fit, length is checked
+						spool = new BodySpool(pathResults, maxContentLength);
+						decoded.flip();
+						spool.append(decoded);
+					}
+				}
+				if (spool == null) {
+					decoded.put(chunk, 0, read);
+				} else {
+					spool.append(ByteBuffer.wrap(chunk, 0, read));
+				}
 			}
-		}
-		String oneOfFields[] = { "Error", "Answer" };
-		for (String field : oneOfFields) {
-			if (map.containsKey(field)) {
-				return true;
+			if (spool == null) {
+				decoded.flip();
+				return decoded;
 			}
+			MappedByteBuffer mapped = spool.map();
+			bufferPool.release(decoded);
+			return mapped;
+		} catch (IOException e) {
+			bufferPool.release(decoded);
+			if (spool != null) {
+				spool.close();
+			}
+			throw e;
 		}
-		return false;
 	}
 
-	private void saveResult(SelectionKey key, Map<String, Object> map)
-			throws IOException {
-		String path = getResultPath(map);
-		File file = new File(path);
-
-		if (!file.exists()) {
-			if (file.createNewFile()) {
-				logger.logInfos("Result file created");
-			} else {
-				throw new IOException("Cannot create a result file");
+	/**
+	 * Mark answered tasks as done, before their results are queued.
+	 * 
+	 * @param attachment
+	 *            - Attachment of the client.
+	 * @param answer
+	 *            - Answer of the client.
+	 * @return For each result of the answer, its task number if it is the
+	 *         first answer of its task; -1 if task was already answered or
+	 *         does not exist. An answer without task number is only accepted
+	 *         for a task leased to the client.
+	 */
+	private int[] completeTasks(Attachment attachment, Answer answer) {
+		List<String> answered = answer.getTasks();
+		int[] taskNumbers = new int[answered.size()];
+		for (int i = 0; i < taskNumbers.length; i++) {
+			String taskNumber = answered.get(i);
+			TaskAssignment task = removeTask(attachment, answer.getJobId(),
+					taskNumber);
+			taskNumbers[i] = -1;
+			if (task != null) {
+				if (taskManager.taskDone(task)) {
+					taskNumbers[i] = task.getTaskNumber();
+				}
+			} else if (taskNumber != null) {
+				try {
+					int number = Integer.parseInt(taskNumber);
+					if (taskManager.taskDone(answer.getJobId(), number)) {
+						taskNumbers[i] = number;
+					}
+				} catch (NumberFormatException e) {
+					// Not a task
+				}
 			}
 		}
+		return taskNumbers;
+	}
 
-		String resultContent = getResultContent(key, map);
-		ByteBuffer bb = Charset.defaultCharset().encode(resultContent);
-		if (maxFileSize > 0) {
-			int remaining = (int) (maxFileSize - file.length());
-			if (remaining <= 0) {
-				logger.logError("The size of " + file.getPath()
-						+ " exceeds limit given in config file");
-				return;
+	/**
+	 * Remove an answered task from the tasks leased to the client.
+	 * 
+	 * @param taskNumber
+	 *            - Task number of the answer, null if answer has none.
+	 * @return The leased task, null if the client has no such task.
+	 */
+	private static TaskAssignment removeTask(Attachment attachment,
+			String jobId, String taskNumber) {
+		List<TaskAssignment> tasks = attachment.tasks;
+		if (taskNumber == null) {
+			// Answer without task number is for the last task leased in its job
+			for (int i = tasks.size() - 1; i >= 0; i--) {
+				if (tasks.get(i).getJob().getJobId().equals(jobId)) {
+					return tasks.remove(i);
+				}
 			}
-			if (remaining < bb.limit()) {
-				bb.limit(remaining);
+			return null;
+		}
+		Iterator<TaskAssignment> it = tasks.iterator();
+		while (it.hasNext()) {
+			TaskAssignment task = it.next();
+			if (task.getJob().getJobId().equals(jobId)
+					&& Integer.toString(task.getTaskNumber()).equals(taskNumber)) {
+				it.remove();
+				return task;
 			}
 		}
-		try (PrintWriter out = new PrintWriter(new BufferedWriter(
-				new FileWriter(path, true)))) {
-			out.println(bb.asCharBuffer());
+		return null;
+	}
+
+	/**
+	 * Prepare the response to an answer, once its results are queued. The
+	 * response is the next task if client asked for it.
+	 * 
+	 * @param attachment
+	 *            - Attachment of the client.
+	 * @throws IOException
+	 *             - If some I/O error occurs.
+	 */
+	private void acknowledgeAnswer(Attachment attachment) throws IOException {
+		// No new task after shutdown command
+		if (attachment.isTaskRequested && !isShutdown) {
+			prepareNewTask(attachment);
+		} else {
+			addAnswerHeader(attachment.out, "200 OK");
 		}
-		logger.logInfos("Result saved in " + path);
 	}
 
-	private String getResultContent(SelectionKey key, Map<String, Object> map)
+	private String getResultPrefix(SelectionKey key, Answer answer)
 			throws IOException {
 		StringBuilder stringBuilder = new StringBuilder();
-		stringBuilder.append(map.get("ClientId")).append("    ")
+		stringBuilder.append(answer.getClientId()).append("    ")
 				.append(((SocketChannel) key.channel()).getRemoteAddress())
-				.append("    ")
-				.append(map.getOrDefault("Answer", map.get("Error")));
+				.append("    ");
 		return stringBuilder.toString();
 	}
 
-	private String getResultPath(Map<String, Object> map) {
+	private String getResultPath(Answer answer) {
 		StringBuilder stringBuilder = new StringBuilder();
 		stringBuilder.append(pathResults).append("/")
-				.append(map.get("JobTaskNumber")).append("-")
-				.append(map.get("JobId")).append(".result");
+				.append(answer.getJobTaskNumber()).append("-")
+				.append(answer.getJobId()).append(".result");
 		return stringBuilder.toString();
 	}
 
-	private void prepareNewTask(SelectionKey key) throws IOException {
-		Attachment attachment = (Attachment) key.attachment();
+	/**
+	 * Lease tasks to the client, as many as it asked, and prepare the
+	 * response. Tasks previously leased stay leased: a client may ask next
+	 * tasks before answering current ones.
+	 */
+	private void prepareNewTask(Attachment attachment) throws IOException {
 		try {
-			attachment.task = taskManager.nextTask();
-			logger.logInfos("Selected task: " + attachment.task);
-			setBufferAnswer(attachment.bb, attachment.task.buildMap());
+			List<TaskAssignment> tasks = taskManager.nextTasks(Math.max(1,
+					attachment.batchSize));
+			attachment.tasks.addAll(tasks);
+			metrics.dispatches.add(tasks.size());
+			if (logger.isEnabled(Logger.Level.INFO)) {
+				logger.logInfos("Selected tasks: " + tasks);
+			}
+			setBufferAnswer(attachment,
+					buildTasksMap(tasks, attachment.batchSize));
 		} catch (NoTaskException e) {
 			logger.logWarning("No more tasks to compute");
 			Map<String, Object> map = new HashMap<String, Object>();
 			map.put("ComeBackInSeconds", ComeBackInSeconds);
-			setBufferAnswer(attachment.bb, map);
+			setBufferAnswer(attachment, map);
+		}
+	}
+
+	/**
+	 * Build the map of leased tasks: with a <i>Task</i> field if client asked
+	 * a single task, with a <i>Tasks</i> array if it gave a batch size.
+	 */
+	private static Map<String, Object> buildTasksMap(
+			List<TaskAssignment> tasks, int batchSize) {
+		if (batchSize == 0) {
+			return tasks.get(0).buildMap();
+		}
+		Map<String, Object> map = tasks.get(0).getJob().buildMap();
+		List<String> numbers = new ArrayList<>(tasks.size());
+		for (TaskAssignment task : tasks) {
+			numbers.add(Integer.toString(task.getTaskNumber()));
+		}
+		map.put("Tasks", numbers);
+		return map;
+	}
+
+	/**
+	 * Give back tasks leased to the client and not answered.
+	 */
+	private void releaseTasks(Attachment attachment) {
+		for (TaskAssignment task : attachment.tasks) {
+			taskManager.addTask(task);
 		}
+		attachment.tasks.clear();
 	}
 
-	private void addSendHeader(ByteBuffer bb, int size) throws IOException {
+	private byte[] createSendHeader(int size, ContentEncoding encoding)
+			throws IOException {
 		Map<String, String> fields = new HashMap<>();
 		fields.put("Content-Type",
 				"application/json; charset=" + CHARSET.name());
 		fields.put("Content-Length", size + "");
+		if (encoding != ContentEncoding.IDENTITY) {
+			fields.put(CONTENT_ENCODING_FIELD, encoding.getToken());
+		}
+		// Codings accepted for answers
+		fields.put(ACCEPT_ENCODING_FIELD, ContentEncoding.ACCEPTED);
+		fields.put(SUPPORTS_FIELD, ANSWER_AND_TASK);
 		HTTPHeader header = HTTPHeader.create("HTTP/1.1 200 OK", fields);
-		bb.put(header.toBytes());
+		return header.toBytes();
 	}
 
 	private void addAnswerHeader(ByteBuffer bb, String code) throws IOException {
-		String answer = "HTTP/1.1 " + code + "\r\n\r\n";
+		String answer = "HTTP/1.1 " + code + "\r\nContent-Length: 0\r\n\r\n";
 		bb.put(Charset.defaultCharset().encode(answer));
 	}
 
-	private void setBufferAnswer(ByteBuffer bb, Map<String, Object> map)
+	/**
+	 * Prepare a text response.
+	 */
+	private void setBufferText(Attachment attachment, String text)
 			throws IOException {
-		ByteBuffer resultBb = getEncodedResponse(map);
-		addSendHeader(bb, resultBb.position());
-		resultBb.flip();
-		bb.put(resultBb);
+		byte[] content = text.getBytes(CHARSET);
+		Map<String, String> fields = new HashMap<>();
+		fields.put("Content-Type", "text/plain; version=0.0.4; charset="
+				+ CHARSET.name());
+		fields.put("Content-Length", content.length + "");
+		byte[] header = HTTPHeader.create("HTTP/1.1 200 OK", fields)
+				.toBytes();
+		reserveOut(attachment, header.length + content.length);
+		attachment.out.put(header).put(content);
 	}
 
-	private ByteBuffer getEncodedResponse(Map<String, Object> map)
-			throws JsonProcessingException {
-		ObjectMapper mapper = new ObjectMapper();
-		ByteBuffer bb = CHARSET.encode(mapper.writeValueAsString(map));
-		bb.compact();
-		return bb;
+	private void setBufferAnswer(Attachment attachment, Map<String, Object> map)
+			throws IOException {
+		byte[] content = JarRetCodec.MAP_WRITER.writeValueAsBytes(map);
+		// Small responses are not worth the time spent to compress them
+		ContentEncoding encoding = ContentEncoding.IDENTITY;
+		if (content.length > COMPRESSION_THRESHOLD) {
+			encoding = attachment.responseEncoding;
+			content = encoding.encode(content);
+		}
+		byte[] header = createSendHeader(content.length, encoding);
+		reserveOut(attachment, header.length + content.length);
+		attachment.out.put(header).put(content);
+	}
+
+	/**
+	 * Make room for a response, in a larger buffer if it does not fit.
+	 */
+	private void reserveOut(Attachment attachment, int size) {
+		if (attachment.out.remaining() < size) {
+			attachment.out = bufferPool.grow(attachment.out,
+					attachment.out.position() + size);
+		}
 	}
 
 	/**
@@ -550,9 +1331,24 @@ public class ServerJarRet {
 		SocketChannel sc = (SocketChannel) key.channel();
 		Attachment attachment = (Attachment) key.attachment();
 		if (attachment != null) {
-			// Task not completed, increase priority.
-			if (attachment.task != null) {
-				taskManager.addTask(attachment.task);
+			// Tasks not completed are given to other clients
+			releaseTasks(attachment);
+			loseResult(attachment);
+			if (attachment.bb != null) {
+				bufferPool.release(attachment.bb);
+				attachment.bb = null;
+			}
+			if (attachment.out != null) {
+				bufferPool.release(attachment.out);
+				attachment.out = null;
+			}
+			if (attachment.spool != null) {
+				try {
+					attachment.spool.close();
+				} catch (IOException e) {
+					logger.logWarning("Cannot delete spooled content", e);
+				}
+				attachment.spool = null;
 			}
 		}
 		try {
@@ -563,6 +1359,24 @@ public class ServerJarRet {
 		}
 	}
 
+	/**
+	 * Make pending again the tasks of a result not queued yet, they are
+	 * marked as done but the result is dropped.
+	 * 
+	 * @param attachment
+	 *            - Attachment of a parked client.
+	 */
+	private void loseResult(Attachment attachment) {
+		if (attachment.result == null) {
+			return;
+		}
+		int reopened = taskManager.tasksLost(attachment.result.jobId,
+				attachment.result.taskNumbers);
+		logger.logWarning(reopened + " task(s) of job "
+				+ attachment.result.jobId + " will be computed again");
+		attachment.result = null;
+	}
+
 	/**
 	 * Write into key's channel.
 	 * 
@@ -572,23 +1386,31 @@ public class ServerJarRet {
 	 */
 	private void doWrite(SelectionKey key) throws IOException {
 		Attachment attachment = (Attachment) key.attachment();
-		attachment.bb.flip();
-		int write = ((SocketChannel) key.channel()).write(attachment.bb);
+		attachment.out.flip();
+		int write = ((SocketChannel) key.channel()).write(attachment.out);
 		if (write != 0) {
+			metrics.bytesOut.add(write);
 			attachment.setActive();
 		}
-		if (!attachment.bb.hasRemaining()) {
-			logger.logInfos("Response sent");
-			// Do not accept new request after shutdown command
-			if (isShutdown && attachment.task == null) {
-				close(key);
-				return;
-			}
-			key.attach(new Attachment());
-			key.interestOps(SelectionKey.OP_READ);
-			logger.logInfos("Now listenning...");
+		boolean isSent = !attachment.out.hasRemaining();
+		attachment.out.compact();
+		if (!isSent) {
+			return;
 		}
-		attachment.bb.compact();
+		metrics.responseLatency.observeNanos(System.nanoTime()
+				- attachment.requestTime);
+		bufferPool.release(attachment.out);
+		attachment.out = null;
+		logger.logInfos("Response sent");
+		// Do not accept new request after shutdown command
+		if ((isShutdown && attachment.tasks.isEmpty())
+				|| attachment.closeAfterResponse) {
+			close(key);
+			return;
+		}
+		logger.logInfos("Now listenning...");
+		// Connection is kept alive, answer next pipelined request if any
+		processRequest(key);
 	}
 
 	/**
@@ -602,14 +1424,20 @@ public class ServerJarRet {
 
 	/**
 	 * Shutdown server. It won't accept new client or new task request.
-	 * 
-	 * @throws IOException
-	 * @throws InterruptedException
+	 * Requests being handled are answered, then connections are closed. Wait
+	 * until server is stopped.
 	 */
 	public void shutdown() {
 		logger.logInfos("Shutdown command received");
 		isShutdown = true;
-		while (isRunning()) {
+		selector.wakeup();
+		for (Reactor reactor : reactors) {
+			reactor.selector.wakeup();
+		}
+		try {
+			stopped.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
@@ -635,6 +1463,17 @@ public class ServerJarRet {
 	 */
 	public void shutdownNow() {
 		serverThread.interrupt();
+		for (Reactor reactor : reactors) {
+			reactor.thread.interrupt();
+		}
+	}
+
+	private int clientCount() {
+		int clients = 0;
+		for (Reactor reactor : reactors) {
+			clients += reactor.clientCount();
+		}
+		return clients;
 	}
 
 	/**
@@ -644,7 +1483,7 @@ public class ServerJarRet {
 		if (!isRunning()) {
 			System.out.println("Server is not isRunning.");
 		} else {
-			System.out.println("There is " + (selector.keys().size() - 1)
+			System.out.println("There is " + clientCount()
 					+ " client(s) connected");
 		}
 		taskManager.info(System.out);
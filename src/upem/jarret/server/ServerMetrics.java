@@ -0,0 +1,165 @@
+package upem.jarret.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import upem.jarret.task.JobProgress;
+import upem.jarret.task.TasksManager;
+import upem.metrics.Counter;
+import upem.metrics.Histogram;
+import upem.metrics.MetricsRegistry;
+
+/**
+ * Metrics of the server, sent in response to <i>GET Metrics</i>.
+ */
+class ServerMetrics {
+	/**
+	 * Nanoseconds over which done tasks per second are computed.
+	 */
+	private static final long RATE_WINDOW = TimeUnit.MINUTES.toNanos(1);
+	/**
+	 * Min nanoseconds between two samples of done tasks.
+	 */
+	private static final long SAMPLE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private final MetricsRegistry registry = new MetricsRegistry();
+
+	final Counter accepts = registry.counter(
+			"jarret_connections_accepted_total", "Connections accepted.");
+	final Counter timeouts = registry.counter(
+			"jarret_connection_timeouts_total",
+			"Connections closed after TIMEOUT without activity.");
+	final Counter dispatches = registry.counter(
+			"jarret_tasks_dispatched_total",
+			"Tasks given to workers, given again ones included.");
+	final Counter answers = registry.counter("jarret_answers_total",
+			"Valid answers received, batches counted once.");
+	final Counter results = registry.counter("jarret_results_total",
+			"Results queued to be written, duplicates excluded.");
+	final Counter expirations = registry.counter(
+			"jarret_lease_expired_tasks_total",
+			"Tasks given again because they were not answered in time.");
+	final Counter errors = registry.counter("jarret_errors_total",
+			"Invalid requests and unexpected errors with clients.");
+	final Counter bytesIn = registry.counter("jarret_received_bytes_total",
+			"Bytes read from clients.");
+	final Counter bytesOut = registry.counter("jarret_sent_bytes_total",
+			"Bytes written to clients.");
+	final Histogram responseLatency = registry.histogram(
+			"jarret_response_seconds",
+			"Time from a complete request to its complete response.",
+			Histogram.LATENCY_BOUNDS);
+	final Histogram writeLatency = registry.histogram(
+			"jarret_result_write_seconds",
+			"Time from a result queued to its result file flushed.",
+			Histogram.LATENCY_BOUNDS);
+
+	private final TasksManager taskManager;
+	/**
+	 * Done tasks of each job over the last RATE_WINDOW, oldest first, to
+	 * compute rates. The oldest sample is kept until a newer one is old
+	 * enough to replace it.
+	 */
+	private final ArrayDeque<DoneSample> samples = new ArrayDeque<>();
+
+	/**
+	 * @param taskManager
+	 *            - Jobs whose progress is reported.
+	 * @param clients
+	 *            - Number of connected clients.
+	 */
+	ServerMetrics(TasksManager taskManager, IntSupplier clients) {
+		this.taskManager = taskManager;
+		registry.gauge("jarret_clients", "Connected clients.",
+				clients::getAsInt);
+		registry.add(writer -> writer.header("jarret_unknown_answers_total",
+				"counter", "Answers of tasks which do not exist.").sample(
+				"jarret_unknown_answers_total", taskManager.unknownCount()));
+		registry.add(this::collectJobs);
+	}
+
+	/**
+	 * @return All metrics, in the Prometheus text format.
+	 */
+	String scrape() {
+		return registry.scrape();
+	}
+
+	/**
+	 * Write progress of each job. Rates are computed over the last minute, or
+	 * since the oldest sample if no sample is that old: they do not depend on
+	 * how often or by how many clients metrics are scraped. They are 0 at the
+	 * first scrape of a job. Called under the lock of the registry.
+	 */
+	private void collectJobs(MetricsRegistry.Writer writer) {
+		List<JobProgress> jobs = taskManager.progress();
+		writer.header("jarret_job_tasks", "gauge", "Tasks of each job by state.");
+		for (JobProgress job : jobs) {
+			String id = job.getJobId();
+			writer.sample("jarret_job_tasks", job.getPending(), "job", id,
+					"state", "pending");
+			writer.sample("jarret_job_tasks", job.getInFlight(), "job", id,
+					"state", "in_flight");
+			writer.sample("jarret_job_tasks", job.getDone(), "job", id,
+					"state", "done");
+		}
+		writer.header("jarret_job_duplicates_total", "counter",
+				"Answers of tasks already done.");
+		for (JobProgress job : jobs) {
+			writer.sample("jarret_job_duplicates_total", job.getDuplicates(),
+					"job", job.getJobId());
+		}
+		DoneSample base = sample(jobs);
+		double seconds = Math.max(System.nanoTime() - base.time, 1) / 1e9;
+		writer.header("jarret_job_done_per_second", "gauge",
+				"Tasks done per second over the last minute.");
+		for (JobProgress job : jobs) {
+			Integer previous = base.done.get(job.getJobId());
+			double rate = previous == null ? 0 : (job.getDone() - previous)
+					/ seconds;
+			writer.sample("jarret_job_done_per_second", rate, "job",
+					job.getJobId());
+		}
+	}
+
+	/**
+	 * Record done tasks of each job, unless last sample is too recent, and
+	 * forget samples older than RATE_WINDOW.
+	 *
+	 * @return Oldest sample kept, to compute rates from.
+	 */
+	private DoneSample sample(List<JobProgress> jobs) {
+		long now = System.nanoTime();
+		DoneSample last = samples.peekLast();
+		if (last == null || now - last.time >= SAMPLE_INTERVAL) {
+			samples.addLast(new DoneSample(now, jobs));
+		}
+		DoneSample oldest = samples.removeFirst();
+		DoneSample next;
+		while ((next = samples.peekFirst()) != null
+				&& now - next.time >= RATE_WINDOW) {
+			// Next sample covers the whole window
+			oldest = samples.removeFirst();
+		}
+		samples.addFirst(oldest);
+		return oldest;
+	}
+
+	/**
+	 * Done tasks of each job at a given time.
+	 */
+	private static class DoneSample {
+		final long time;
+		final HashMap<String, Integer> done = new HashMap<>();
+
+		DoneSample(long time, List<JobProgress> jobs) {
+			this.time = time;
+			for (JobProgress job : jobs) {
+				done.put(job.getJobId(), job.getDone());
+			}
+		}
+	}
+}
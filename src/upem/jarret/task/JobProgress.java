@@ -0,0 +1,50 @@
+package upem.jarret.task;
+
+/**
+ * State of the tasks of a job at one moment.
+ */
+public class JobProgress {
+	private final String jobId;
+	private final int priority;
+	private final int pending;
+	private final int inFlight;
+	private final int done;
+	private final long duplicates;
+
+	JobProgress(TaskServer job) {
+		TaskRange range = job.getRange();
+		jobId = job.getJobId();
+		priority = job.getJobPriority();
+		pending = range.pendingCount();
+		inFlight = range.inFlightCount();
+		done = range.doneCount();
+		duplicates = range.duplicateCount();
+	}
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	public int getPending() {
+		return pending;
+	}
+
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	public int getDone() {
+		return done;
+	}
+
+	/**
+	 * @return Number of answers of tasks already done.
+	 */
+	public long getDuplicates() {
+		return duplicates;
+	}
+}
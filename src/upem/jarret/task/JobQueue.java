@@ -0,0 +1,134 @@
+package upem.jarret.task;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+
+/**
+ * Jobs which have pending tasks, served by deficit round robin: each job gets
+ * tasks in proportion to its weight, its JobPriority. A job of priority 0 has
+ * the weight of a job of priority 1, so that no job starves.
+ * <p>
+ * At each turn, a job receives QUANTUM credits per unit of weight, and each
+ * task given costs one credit. Its turn ends when it has no credit left,
+ * remaining credits are kept for its next turn. Choosing a job costs O(1) per
+ * task.
+ */
+class JobQueue {
+	/**
+	 * Credits per unit of weight and per turn, enough for a batch of tasks.
+	 */
+	private static final long QUANTUM = 64;
+
+	/**
+	 * Turn of each queued job, in serving order. Removed jobs are skipped when
+	 * they reach the head.
+	 */
+	private final ArrayDeque<Share> turns = new ArrayDeque<>();
+	private final IdentityHashMap<TaskServer, Share> shares = new IdentityHashMap<>();
+
+	/**
+	 * Credits of a queued job.
+	 */
+	private static class Share {
+		final TaskServer job;
+		long credits;
+		boolean isRemoved = false;
+
+		Share(TaskServer job) {
+			this.job = job;
+			credits = turnCredits(job);
+		}
+	}
+
+	/**
+	 * Add a job at the end of the round.
+	 *
+	 * @param job
+	 *            - Job to add.
+	 * @return False if job is already queued.
+	 */
+	boolean add(TaskServer job) {
+		if (shares.containsKey(job)) {
+			return false;
+		}
+		Share share = new Share(job);
+		shares.put(job, share);
+		turns.add(share);
+		return true;
+	}
+
+	/**
+	 * Remove a job, its remaining credits are lost.
+	 *
+	 * @param job
+	 *            - Job to remove.
+	 * @return False if job was not queued.
+	 */
+	boolean remove(TaskServer job) {
+		Share share = shares.remove(job);
+		if (share == null) {
+			return false;
+		}
+		share.isRemoved = true;
+		return true;
+	}
+
+	/**
+	 * Get the job whose turn it is, it has at least one credit.
+	 *
+	 * @return Job, or null if queue is empty.
+	 */
+	TaskServer peek() {
+		Share head;
+		while ((head = turns.peek()) != null) {
+			if (head.isRemoved) {
+				turns.poll();
+			} else if (head.credits > 0) {
+				return head.job;
+			} else {
+				// End of its turn, credits for the next one
+				turns.poll();
+				head.credits += turnCredits(head.job);
+				turns.add(head);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param job
+	 *            - Queued job.
+	 * @return Number of tasks the job can get in its current turn.
+	 */
+	long credits(TaskServer job) {
+		Share share = shares.get(job);
+		return share == null ? 0 : share.credits;
+	}
+
+	/**
+	 * Pay tasks given to a job.
+	 *
+	 * @param job
+	 *            - Queued job.
+	 * @param count
+	 *            - Number of tasks given.
+	 */
+	void charge(TaskServer job, int count) {
+		Share share = shares.get(job);
+		if (share != null) {
+			share.credits -= count;
+		}
+	}
+
+	boolean isEmpty() {
+		return shares.isEmpty();
+	}
+
+	int size() {
+		return shares.size();
+	}
+
+	private static long turnCredits(TaskServer job) {
+		return Math.max(job.getJobPriority(), 1) * QUANTUM;
+	}
+}
@@ -0,0 +1,37 @@
+package upem.jarret.task;
+
+import java.util.List;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tasks given together to a worker, with the time they must be answered
+ * before. Leases are ordered by deadline in a DelayQueue.
+ */
+class Lease implements Delayed {
+	private final List<TaskAssignment> assignments;
+	/**
+	 * Deadline, in milliseconds since epoch.
+	 */
+	private final long deadline;
+
+	Lease(List<TaskAssignment> assignments, long deadline) {
+		this.assignments = assignments;
+		this.deadline = deadline;
+	}
+
+	List<TaskAssignment> getAssignments() {
+		return assignments;
+	}
+
+	@Override
+	public long getDelay(TimeUnit unit) {
+		return unit.convert(deadline - System.currentTimeMillis(),
+				TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public int compareTo(Delayed o) {
+		return Long.compare(deadline, ((Lease) o).deadline);
+	}
+}
@@ -1,7 +1,10 @@
 package upem.jarret.task;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 public class Task {
 	private String JobId;
@@ -9,6 +12,14 @@ public class Task {
 	private String WorkerURL;
 	private String WorkerClassName;
 	private String JobTaskNumber;
+	/**
+	 * Task number to compute, only set on tasks given to a worker.
+	 */
+	private String Task;
+	/**
+	 * Task numbers to compute, only set on batches given to a worker.
+	 */
+	private List<String> Tasks;
 
 	public String getJobId() {
 		return JobId;
@@ -30,6 +41,24 @@ public class Task {
 		return JobTaskNumber;
 	}
 
+	public String getTask() {
+		return Task;
+	}
+
+	/**
+	 * @return Task numbers to compute: the batch, or the single task. Empty if
+	 *         there is no task.
+	 */
+	public List<String> getTasks() {
+		if (Tasks != null) {
+			return Collections.unmodifiableList(Tasks);
+		}
+		if (Task != null) {
+			return Collections.singletonList(Task);
+		}
+		return Collections.emptyList();
+	}
+
 	public Map<String, Object> buildMap() {
 		HashMap<String, Object> map = new HashMap<>();
 		map.put("JobId", JobId);
@@ -37,6 +66,9 @@ public class Task {
 		map.put("WorkerURL", getWorkerURL());
 		map.put("WorkerClassName", getWorkerClassName());
 		map.put("JobTaskNumber", getJobTaskNumber());
+		if (Task != null) {
+			map.put("Task", getTask());
+		}
 		return map;
 	}
 
@@ -47,8 +79,10 @@ public class Task {
 				.append(", WorkerVersionNumber=")
 				.append(getWorkerVersionNumber()).append(", WorkerURL=")
 				.append(getWorkerURL()).append(", WorkerClassName=")
-				.append(getWorkerClassName()).append(", Task=")
-				.append(getJobTaskNumber()).append("]");
+				.append(getWorkerClassName()).append(", JobTaskNumber=")
+				.append(getJobTaskNumber()).append(", Task=")
+				.append(getTask()).append(", Tasks=").append(Tasks)
+				.append("]");
 		return builder.toString();
 	}
 
@@ -68,6 +102,14 @@ public class Task {
 				&& task.WorkerVersionNumber.equals(WorkerVersionNumber)
 				&& task.WorkerURL.equals(WorkerURL)
 				&& task.WorkerClassName.equals(WorkerClassName)
-				&& task.JobTaskNumber.equals(JobTaskNumber);
+				&& task.JobTaskNumber.equals(JobTaskNumber)
+				&& Objects.equals(task.Task, Task)
+				&& Objects.equals(task.Tasks, Tasks);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(JobId, WorkerVersionNumber, WorkerURL,
+				WorkerClassName, JobTaskNumber, Task, Tasks);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+package upem.jarret.task;
+
+import java.util.Map;
+
+/**
+ * One task number of a job, given to a worker.
+ */
+public class TaskAssignment {
+	private final TaskServer job;
+	private final int taskNumber;
+	/**
+	 * True until the task is answered, given back or its lease expires.
+	 * Guarded by the lock of TasksManager.
+	 */
+	boolean isLeased = true;
+	/**
+	 * Time the task was given, in milliseconds since epoch.
+	 */
+	final long leasedAt = System.currentTimeMillis();
+	/**
+	 * Other worker computing the same task in end game, null if task is
+	 * given once. Guarded by the lock of TasksManager.
+	 */
+	TaskAssignment twin;
+
+	TaskAssignment(TaskServer job, int taskNumber) {
+		this.job = job;
+		this.taskNumber = taskNumber;
+	}
+
+	public TaskServer getJob() {
+		return job;
+	}
+
+	public int getTaskNumber() {
+		return taskNumber;
+	}
+
+	/**
+	 * Build the map sent to the worker.
+	 *
+	 * @return Job description with the <i>Task</i> field.
+	 */
+	public Map<String, Object> buildMap() {
+		Map<String, Object> map = job.buildMap();
+		map.put("Task", Integer.toString(taskNumber));
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("TaskAssignment [JobId=").append(job.getJobId())
+				.append(", Task=").append(taskNumber).append("]");
+		return builder.toString();
+	}
+}
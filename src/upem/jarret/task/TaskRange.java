@@ -0,0 +1,179 @@
+package upem.jarret.task;
+
+import java.util.BitSet;
+
+/**
+ * State of every task number of a job, kept in two bitsets instead of one
+ * object per task. A task is either pending, in flight (given to a worker but
+ * not answered yet) or done. Memory stays around two bits per task.
+ */
+class TaskRange {
+	private final int size;
+	private final BitSet pending;
+	private final BitSet done;
+	/**
+	 * No task number below the cursor is pending.
+	 */
+	private int cursor = 0;
+	private int pendingCount;
+	private int doneCount = 0;
+	/**
+	 * Number of answers of tasks already done.
+	 */
+	private long duplicateCount = 0;
+
+	/**
+	 * Create a range where tasks 0 to size - 1 are pending.
+	 *
+	 * @param size
+	 *            - Number of tasks of the job.
+	 */
+	TaskRange(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative number of tasks");
+		}
+		this.size = size;
+		pending = new BitSet(size);
+		pending.set(0, size);
+		done = new BitSet();
+		pendingCount = size;
+	}
+
+	/**
+	 * Take the lowest pending task number and mark it in flight.
+	 *
+	 * @return task number, or -1 if no task is pending.
+	 */
+	int next() {
+		int taskNumber = pending.nextSetBit(cursor);
+		if (taskNumber < 0) {
+			cursor = size;
+			return -1;
+		}
+		pending.clear(taskNumber);
+		pendingCount--;
+		cursor = taskNumber + 1;
+		return taskNumber;
+	}
+
+	/**
+	 * Put an in flight task back in the pending tasks.
+	 *
+	 * @param taskNumber
+	 *            - Task given by {@link #next()}.
+	 * @return False if task was not in flight.
+	 */
+	boolean release(int taskNumber) {
+		if (!isInFlight(taskNumber)) {
+			return false;
+		}
+		pending.set(taskNumber);
+		pendingCount++;
+		if (taskNumber < cursor) {
+			cursor = taskNumber;
+		}
+		return true;
+	}
+
+	/**
+	 * Mark a task as done.
+	 *
+	 * @param taskNumber
+	 *            - Task number.
+	 * @return False if task was already done, it is counted as a duplicate.
+	 */
+	boolean complete(int taskNumber) {
+		checkIndex(taskNumber);
+		if (done.get(taskNumber)) {
+			duplicateCount++;
+			return false;
+		}
+		if (pending.get(taskNumber)) {
+			pending.clear(taskNumber);
+			pendingCount--;
+		}
+		done.set(taskNumber);
+		doneCount++;
+		return true;
+	}
+
+	/**
+	 * Put a done task back in the pending tasks.
+	 *
+	 * @param taskNumber
+	 *            - Task number.
+	 * @return False if task was not done.
+	 */
+	boolean reopen(int taskNumber) {
+		if (!isDone(taskNumber)) {
+			return false;
+		}
+		done.clear(taskNumber);
+		doneCount--;
+		pending.set(taskNumber);
+		pendingCount++;
+		if (taskNumber < cursor) {
+			cursor = taskNumber;
+		}
+		return true;
+	}
+
+	/**
+	 * Mark tasks as done, before any task is given.
+	 *
+	 * @param tasks
+	 *            - Task numbers, those out of the range are ignored.
+	 */
+	void completeAll(BitSet tasks) {
+		done.or(tasks.get(0, size));
+		pending.andNot(done);
+		pendingCount = pending.cardinality();
+		doneCount = done.cardinality();
+		cursor = 0;
+	}
+
+	boolean isInFlight(int taskNumber) {
+		checkIndex(taskNumber);
+		return !pending.get(taskNumber) && !done.get(taskNumber);
+	}
+
+	boolean isDone(int taskNumber) {
+		checkIndex(taskNumber);
+		return done.get(taskNumber);
+	}
+
+	boolean hasPending() {
+		return pendingCount > 0;
+	}
+
+	boolean isComplete() {
+		return doneCount == size;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int pendingCount() {
+		return pendingCount;
+	}
+
+	int doneCount() {
+		return doneCount;
+	}
+
+	int inFlightCount() {
+		return size - pendingCount - doneCount;
+	}
+
+	long duplicateCount() {
+		return duplicateCount;
+	}
+
+	private void checkIndex(int taskNumber) {
+		if (taskNumber < 0 || taskNumber >= size) {
+			throw new IndexOutOfBoundsException("Task " + taskNumber
+					+ " is not in [0, " + size + "[");
+		}
+	}
+}
@@ -1,10 +1,16 @@
 package upem.jarret.task;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 public class TaskServer extends TaskWorker implements Comparable<TaskServer> {
 	private String JobDescription;
 	private int JobPriority;
 	private final Object lock = new Object();
+	/**
+	 * State of the tasks of this job, created on first use.
+	 */
+	@JsonIgnore
+	private TaskRange range;
 
 	public String getJobDescription() {
 		return JobDescription;
@@ -14,13 +20,19 @@ public class TaskServer extends TaskWorker implements Comparable<TaskServer> {
 		return JobPriority;
 	}
 
-	public void decrementPriority() throws IllegalAccessException {
+	/**
+	 * Get the state of the tasks of this job.
+	 * 
+	 * @return Range of JobTaskNumber tasks.
+	 * @throws NumberFormatException
+	 *             - If JobTaskNumber is not a number.
+	 */
+	TaskRange getRange() {
 		synchronized (lock) {
-			if (JobPriority == 0) {
-				throw new IllegalAccessException(
-						"Task priority cannot be negative.");
+			if (range == null) {
+				range = new TaskRange(Integer.parseInt(getJobTaskNumber()));
 			}
-			JobPriority--;
+			return range;
 		}
 	}
 
@@ -45,12 +57,19 @@ public class TaskServer extends TaskWorker implements Comparable<TaskServer> {
 
 	@Override
 	public boolean isValid() {
-		return super.isValid() && JobPriority >= 0;
+		if (!super.isValid() || JobPriority < 0) {
+			return false;
+		}
+		try {
+			return Integer.parseInt(getJobTaskNumber()) >= 0;
+		} catch (NumberFormatException e) {
+			return false;
+		}
 	}
 
-	public void incrementPriority() {
+	void setJobPriority(int priority) {
 		synchronized (lock) {
-			JobPriority++;
+			JobPriority = priority;
 		}
 	}
 }
@@ -9,6 +9,17 @@ public class TaskWorker extends Task {
 	public Worker getWorker() throws MalformedURLException,
 			ClassNotFoundException, IllegalAccessException,
 			InstantiationException {
-		return WorkerFactory.getWorker(getWorkerURL(), getWorkerClassName());
+		return WorkerFactory.getWorker(getWorkerURL(), getWorkerClassName(),
+				getWorkerVersionNumber());
+	}
+
+	/**
+	 * Give back a worker given by getWorker(), once tasks are computed.
+	 * 
+	 * @param worker
+	 *            - Worker not used anymore.
+	 */
+	public void releaseWorker(Worker worker) {
+		WorkerFactory.releaseWorker(worker);
 	}
 }
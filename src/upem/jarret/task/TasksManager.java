@@ -4,59 +4,490 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.DelayQueue;
+
+import upem.jarret.JarRetCodec;
 
-import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.introspect.VisibilityChecker;
+import com.fasterxml.jackson.databind.ObjectReader;
 
+/**
+ * Jobs and their tasks. All methods can be called from several threads.
+ * <p>
+ * In end game, once no task is pending, tasks in flight for longer than most
+ * tasks take to be answered are given a second time to idle workers, so that
+ * a slow worker does not delay the end of the jobs. The first answer of a task
+ * completes it, taskDone() returns false for the other one.
+ */
 public class TasksManager {
-	private final ArrayList<TaskServer> tasks = new ArrayList<>();
+	/**
+	 * Number of last answer times kept to compute the end game threshold.
+	 */
+	private static final int DURATION_SAMPLES = 1024;
+	/**
+	 * Number of batches in flight under which answered batches are only
+	 * removed at the head.
+	 */
+	private static final int IN_FLIGHT_SWEEP = 1024;
+
+	/**
+	 * All jobs, by JobId.
+	 */
+	private final LinkedHashMap<String, TaskServer> tasks = new LinkedHashMap<>();
+	/**
+	 * Jobs which have pending tasks.
+	 */
+	private final JobQueue queue = new JobQueue();
+	/**
+	 * Tasks done before a restart, by JobId, for jobs not added yet.
+	 */
+	private final HashMap<String, BitSet> restored = new HashMap<>();
+	/**
+	 * Number of answers of tasks which do not exist.
+	 */
+	private long unknownCount = 0;
+	/**
+	 * Leases by deadline. A lease stays in the queue until its deadline,
+	 * even if its tasks are answered before.
+	 */
+	private final DelayQueue<Lease> leases = new DelayQueue<>();
+	/**
+	 * Milliseconds a worker has to answer its tasks, 0 for no limit.
+	 */
+	private final long leaseTimeout;
+	/**
+	 * Tasks given together, oldest first, only kept in end game mode. Tasks
+	 * answered at the head are removed by nextTasks(), the others when the
+	 * deque doubles in size.
+	 */
+	private final ArrayDeque<List<TaskAssignment>> inFlight = new ArrayDeque<>();
+	/**
+	 * Size of inFlight above which all answered batches are removed.
+	 */
+	private int inFlightLimit = IN_FLIGHT_SWEEP;
+	/**
+	 * Percentile of answer times after which a task is given again once no
+	 * task is pending, 0 to disable end game.
+	 */
+	private final int endGamePercentile;
+	/**
+	 * Last answer times in milliseconds, used as a ring buffer.
+	 */
+	private final long[] durations = new long[DURATION_SAMPLES];
+	private int durationCount = 0;
+	private int durationIndex = 0;
 
+	/**
+	 * Create a manager where tasks are leased without time limit and given
+	 * once.
+	 */
 	public TasksManager() {
+		this(0, 0);
+	}
+
+	/**
+	 * @param leaseTimeout
+	 *            - Milliseconds a worker has to answer its tasks before they
+	 *            are given to other workers, 0 for no limit.
+	 * @param endGamePercentile
+	 *            - Once no task is pending, tasks in flight for longer than
+	 *            this percentile of answer times are given again, 0 to give
+	 *            each task once.
+	 */
+	public TasksManager(long leaseTimeout, int endGamePercentile) {
+		if (leaseTimeout < 0) {
+			throw new IllegalArgumentException(
+					"Lease timeout cannot be negative.");
+		}
+		if (endGamePercentile < 0 || endGamePercentile > 100) {
+			throw new IllegalArgumentException(
+					"Percentile must be between 0 and 100.");
+		}
+		this.leaseTimeout = leaseTimeout;
+		this.endGamePercentile = endGamePercentile;
+	}
+
+	/**
+	 * Give the next pending task of the job whose turn it is.
+	 * 
+	 * @return Task number and its job.
+	 * @throws NoTaskException
+	 *             - If no task is pending.
+	 */
+	public TaskAssignment nextTask() throws NoTaskException {
+		return nextTasks(1).get(0);
+	}
+
+	/**
+	 * Give pending tasks of the job whose turn it is. Jobs get tasks in
+	 * proportion to their JobPriority, see JobQueue; a batch is cut at the end
+	 * of the turn of its job. Tasks are leased together: if they are not
+	 * answered before the lease timeout, expireLeases() makes them pending
+	 * again.
+	 * <p>
+	 * In end game, tasks given to slow workers are given again.
+	 * 
+	 * @param max
+	 *            - Max number of tasks, positive.
+	 * @return Between 1 and max tasks, all of the same job.
+	 * @throws NoTaskException
+	 *             - If no task is pending nor late.
+	 */
+	public synchronized List<TaskAssignment> nextTasks(int max)
+			throws NoTaskException {
+		if (max <= 0) {
+			throw new IllegalArgumentException("Task count must be positive.");
+		}
+		// Answered tasks at the head are forgotten
+		List<TaskAssignment> oldest;
+		while ((oldest = inFlight.peek()) != null && isAnswered(oldest)) {
+			inFlight.poll();
+		}
+		TaskServer task = queue.peek();
+		if (task == null) {
+			List<TaskAssignment> copies = nextLateTasks(max);
+			if (copies.isEmpty()) {
+				throw new NoTaskException();
+			}
+			return copies;
+		}
+		TaskRange range = task.getRange();
+		int count = (int) Math.min(Math.min(max, queue.credits(task)),
+				range.pendingCount());
+		List<TaskAssignment> assignments = new ArrayList<>(count);
+		while (assignments.size() < count) {
+			assignments.add(new TaskAssignment(task, range.next()));
+		}
+		// Leased once filled: an empty batch looks answered
+		lease(assignments);
+		queue.charge(task, count);
+		if (!range.hasPending()) {
+			queue.remove(task);
+		}
+		return assignments;
+	}
+
+	/**
+	 * Give again tasks in flight for longer than the end game threshold. Each
+	 * task is given at most twice.
+	 * 
+	 * @param max
+	 *            - Max number of tasks, positive.
+	 * @return Copies of late tasks, all of the same job, may be empty.
+	 */
+	private List<TaskAssignment> nextLateTasks(int max) {
+		if (endGamePercentile == 0 || durationCount == 0) {
+			return Collections.emptyList();
+		}
+		long lateBefore = System.currentTimeMillis()
+				- durationPercentile(endGamePercentile);
+		List<TaskAssignment> copies = new ArrayList<>();
+		TaskServer job = null;
+		for (List<TaskAssignment> assignments : inFlight) {
+			if (copies.size() == max
+					|| assignments.get(0).leasedAt > lateBefore) {
+				// Enough tasks, or next tasks were given later
+				break;
+			}
+			for (TaskAssignment assignment : assignments) {
+				if (copies.size() == max || !assignment.isLeased
+						|| assignment.twin != null
+						|| (job != null && assignment.getJob() != job)
+						|| !assignment.getJob().getRange()
+								.isInFlight(assignment.getTaskNumber())) {
+					continue;
+				}
+				job = assignment.getJob();
+				TaskAssignment copy = new TaskAssignment(job,
+						assignment.getTaskNumber());
+				copy.twin = assignment;
+				assignment.twin = copy;
+				copies.add(copy);
+			}
+		}
+		if (!copies.isEmpty()) {
+			lease(copies);
+		}
+		return copies;
 	}
 
-	public TaskServer nextTask() throws NoTaskException {
-		if (tasks.isEmpty()) {
-			throw new NoTaskException();
+	/**
+	 * Start the lease of tasks given together.
+	 */
+	private void lease(List<TaskAssignment> assignments) {
+		if (leaseTimeout > 0) {
+			leases.add(new Lease(assignments, System.currentTimeMillis()
+					+ leaseTimeout));
+		}
+		if (endGamePercentile > 0) {
+			inFlight.add(assignments);
+			if (inFlight.size() > inFlightLimit) {
+				// A slow worker at the head keeps the batches behind it
+				inFlight.removeIf(TasksManager::isAnswered);
+				inFlightLimit = Math.max(IN_FLIGHT_SWEEP, 2 * inFlight.size());
+			}
 		}
-		TaskServer task = tasks.get(0);
-		try {
-			task.decrementPriority();
-		} catch (IllegalAccessException e) {
-			throw new NoTaskException();
+	}
+
+	/**
+	 * @return True if no task given together is still leased and in flight:
+	 *         they were answered, or their lease expired.
+	 */
+	private static boolean isAnswered(List<TaskAssignment> assignments) {
+		return assignments.stream().noneMatch(
+				a -> a.isLeased
+						&& a.getJob().getRange().isInFlight(a.getTaskNumber()));
+	}
+
+	/**
+	 * @return Answer time in milliseconds, under which percentile percent of
+	 *         last tasks were answered.
+	 */
+	private long durationPercentile(int percentile) {
+		long[] sorted = Arrays.copyOf(durations, durationCount);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * durationCount) - 1;
+		return sorted[Math.max(index, 0)];
+	}
+
+	/**
+	 * @return State of every job, in the order they were added.
+	 */
+	public synchronized List<JobProgress> progress() {
+		List<JobProgress> progress = new ArrayList<>(tasks.size());
+		for (TaskServer task : tasks.values()) {
+			progress.add(new JobProgress(task));
 		}
-		tasks.sort(null);
-		return task;
+		return progress;
 	}
 
-	public void info(PrintStream out) {
-		tasks.stream().forEach(
+	/**
+	 * @return Number of answers of tasks which do not exist.
+	 */
+	public synchronized long unknownCount() {
+		return unknownCount;
+	}
+
+	public synchronized void info(PrintStream out) {
+		tasks.values().stream().forEach(
 				t -> out.println("JobId: " + t.getJobId() + "    "
 						+ "JobTaskNumber: " + t.getJobTaskNumber() + "    "
-						+ "JobPriority: " + t.getJobPriority()));
+						+ "JobPriority: " + t.getJobPriority() + "    "
+						+ "Pending: " + t.getRange().pendingCount() + "    "
+						+ "InFlight: " + t.getRange().inFlightCount() + "    "
+						+ "Done: " + t.getRange().doneCount() + "    "
+						+ "Duplicates: " + t.getRange().duplicateCount()));
+		out.println("Answers of unknown tasks: " + unknownCount);
 	}
 
-	public boolean addTask(TaskServer task) {
-		if (tasks.contains(task)) {
-			task.incrementPriority();
-			return true;
+	/**
+	 * Mark as done tasks completed before a restart. Jobs added later get
+	 * their done tasks when they are added.
+	 * 
+	 * @param done
+	 *            - Done tasks by JobId.
+	 */
+	public synchronized void restore(Map<String, BitSet> done) {
+		done.forEach((jobId, tasks) -> {
+			TaskServer task = this.tasks.get(jobId);
+			if (task == null) {
+				restored.put(jobId, tasks);
+				return;
+			}
+			task.getRange().completeAll(tasks);
+			if (!task.getRange().hasPending()) {
+				queue.remove(task);
+			}
+		});
+	}
+
+	/**
+	 * Add a job. All its tasks are pending, except those done before a
+	 * restart.
+	 * 
+	 * @param task
+	 *            - Job description.
+	 * @return False if job is not valid or already added.
+	 */
+	public synchronized boolean addTask(TaskServer task) {
+		if (!task.isValid()
+				|| tasks.putIfAbsent(task.getJobId(), task) != null) {
+			return false;
+		}
+		BitSet done = restored.remove(task.getJobId());
+		if (done != null) {
+			task.getRange().completeAll(done);
+		}
+		if (task.getRange().hasPending()) {
+			queue.add(task);
+		}
+		return true;
+	}
+
+	/**
+	 * Give back a task which was not completed, its job is queued again if
+	 * needed.
+	 * 
+	 * @param assignment
+	 *            - Task given by nextTask().
+	 * @return False if task was not leased anymore or not in flight.
+	 */
+	public synchronized boolean addTask(TaskAssignment assignment) {
+		if (!assignment.isLeased) {
+			// Answered, or lease expired
+			return false;
+		}
+		assignment.isLeased = false;
+		if (assignment.twin != null && assignment.twin.isLeased) {
+			// Still computed by another worker
+			return false;
+		}
+		TaskServer task = assignment.getJob();
+		if (!task.getRange().release(assignment.getTaskNumber())) {
+			return false;
 		}
-		return tasks.add(task);
+		queue.add(task);
+		return true;
+	}
+
+	/**
+	 * Change the priority of a job.
+	 * 
+	 * @param jobId
+	 *            - Id of the job.
+	 * @param priority
+	 *            - New priority, positive or zero; 0 weighs as 1.
+	 * @return False if job is unknown.
+	 */
+	public synchronized boolean setJobPriority(String jobId, int priority) {
+		if (priority < 0) {
+			throw new IllegalArgumentException(
+					"Task priority cannot be negative.");
+		}
+		TaskServer task = tasks.get(jobId);
+		if (task == null) {
+			return false;
+		}
+		// New weight is used from the next turn of the job
+		task.setJobPriority(priority);
+		return true;
+	}
+
+	/**
+	 * Mark a task as done, it will not be given again. An answer is accepted
+	 * even if its lease expired.
+	 * 
+	 * @param assignment
+	 *            - Task given by nextTask().
+	 * @return False if task was already done, the answer is a duplicate.
+	 */
+	public synchronized boolean taskDone(TaskAssignment assignment) {
+		assignment.isLeased = false;
+		if (!complete(assignment.getJob(), assignment.getTaskNumber())) {
+			return false;
+		}
+		durations[durationIndex] = System.currentTimeMillis()
+				- assignment.leasedAt;
+		durationIndex = (durationIndex + 1) % DURATION_SAMPLES;
+		durationCount = Math.min(durationCount + 1, DURATION_SAMPLES);
+		return true;
+	}
+
+	/**
+	 * Mark as done a task which is not leased to the worker answering it.
+	 * 
+	 * @param jobId
+	 *            - Id of the job.
+	 * @param taskNumber
+	 *            - Task number.
+	 * @return False if task was already done or does not exist.
+	 */
+	public synchronized boolean taskDone(String jobId, int taskNumber) {
+		TaskServer task = tasks.get(jobId);
+		if (task == null || taskNumber < 0
+				|| taskNumber >= task.getRange().size()) {
+			unknownCount++;
+			return false;
+		}
+		return complete(task, taskNumber);
+	}
+
+	private boolean complete(TaskServer task, int taskNumber) {
+		TaskRange range = task.getRange();
+		if (!range.complete(taskNumber)) {
+			return false;
+		}
+		if (!range.hasPending()) {
+			// Task was made pending again, then answered by its first worker
+			queue.remove(task);
+		}
+		return true;
+	}
+
+	/**
+	 * Make pending again tasks marked as done whose results were lost. They
+	 * are given again, their job is queued again if needed.
+	 * 
+	 * @param jobId
+	 *            - Id of the job.
+	 * @param taskNumbers
+	 *            - Task numbers.
+	 * @return Number of tasks made pending again.
+	 */
+	public synchronized int tasksLost(String jobId, int[] taskNumbers) {
+		TaskServer task = tasks.get(jobId);
+		if (task == null) {
+			return 0;
+		}
+		int reopened = 0;
+		for (int taskNumber : taskNumbers) {
+			if (taskNumber >= 0 && taskNumber < task.getRange().size()
+					&& task.getRange().reopen(taskNumber)) {
+				reopened++;
+			}
+		}
+		if (reopened > 0) {
+			queue.add(task);
+		}
+		return reopened;
+	}
+
+	/**
+	 * Make pending again the tasks whose lease expired without answer. Their
+	 * job is queued again if needed and gives them to other workers in its
+	 * next turns, with its own priority.
+	 * 
+	 * @return Number of tasks made pending again.
+	 */
+	public int expireLeases() {
+		int expired = 0;
+		Lease lease;
+		while ((lease = leases.poll()) != null) {
+			synchronized (this) {
+				for (TaskAssignment assignment : lease.getAssignments()) {
+					if (addTask(assignment)) {
+						expired++;
+					}
+				}
+			}
+		}
+		return expired;
 	}
 
 	public void addTaskFromFile(String filePath) throws JsonParseException,
 			JsonMappingException, IOException, FileNotFoundException {
-		ObjectMapper mapper = new ObjectMapper();
-
-		// http://stackoverflow.com/questions/23469784/com-fasterxml-jackson-databind-exc-unrecognizedpropertyexception-unrecognized-f
-		mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
-		mapper.setVisibilityChecker(VisibilityChecker.Std.defaultInstance()
-				.withFieldVisibility(JsonAutoDetect.Visibility.ANY));
+		ObjectReader reader = JarRetCodec.TASK_SERVER_READER;
 
 		File file = new File(filePath);
 		try (Scanner scanner = new Scanner(file)) {
@@ -65,17 +496,16 @@ public class TasksManager {
 				String string = scanner.nextLine();
 				stringBuilder.append(string);
 				if (string.equals("")) {
-					addTask(mapper.readValue(stringBuilder.toString(),
-							TaskServer.class));
+					addTask(reader.<TaskServer> readValue(stringBuilder
+							.toString()));
 					stringBuilder = new StringBuilder();
 				}
 			}
 			if (stringBuilder.length() != 0) {
-				addTask(mapper.readValue(stringBuilder.toString(),
-						TaskServer.class));
+				addTask(reader.<TaskServer> readValue(stringBuilder
+						.toString()));
 				stringBuilder = new StringBuilder();
 			}
 		}
-		tasks.sort(null);
 	}
 }
@@ -3,46 +3,92 @@ package upem.jarret.worker;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetSocketAddress;
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import upem.jarret.JarRetCodec;
 import upem.jarret.task.NoTaskException;
 import upem.jarret.task.TaskWorker;
 import upem.logger.Logger;
+import upem.net.tcp.http.ContentEncoding;
 import upem.net.tcp.http.HTTPException;
 import upem.net.tcp.http.HTTPHeader;
 import upem.net.tcp.http.HTTPReader;
 
-import com.fasterxml.jackson.annotation.JsonAutoDetect;
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.introspect.VisibilityChecker;
 
+/**
+ * Client computing tasks given by a server. Several threads can work in the
+ * same JVM: each one has its own connection and computes its own tasks, so
+ * that some threads compute while others wait for the server. All threads
+ * share the classes of workers loaded by WorkerFactory.
+ */
 public class ClientJarRet {
 	private static final int BUFFER_SIZE = 4096;
 	private static final Charset CHARSET = Charset.forName("UTF-8");
+	/**
+	 * Field of task responses listing optional requests handled by server.
+	 */
+	private static final String SUPPORTS_FIELD = "JarRet-Supports";
+	/**
+	 * Request posting an answer, responded by the next task.
+	 */
+	private static final String ANSWER_AND_TASK = "AnswerAndTask";
+	/**
+	 * Field of task requests giving the number of tasks wanted.
+	 */
+	private static final String BATCH_SIZE_FIELD = "Batch-Size";
+	private static final int MAX_BATCH_SIZE = 64;
+	/**
+	 * Time the computation of a batch should take. The batch size is adapted
+	 * to reach it, so that short tasks share the cost of a request.
+	 */
+	private static final double TARGET_BATCH_MILLIS = 200;
+	/**
+	 * Weight of the last batch in the mean time of a task.
+	 */
+	private static final double TASK_MILLIS_WEIGHT = 0.3;
+	/**
+	 * Where worker jars are saved between two runs.
+	 */
+	private static final String JAR_CACHE_DIRECTORY = "jarcache";
+	private static final long JAR_CACHE_MAX_SIZE = 256L * 1024 * 1024;
+	/**
+	 * Answers larger than this number of bytes are compressed, if the server
+	 * accepts it.
+	 */
+	private static final int COMPRESSION_THRESHOLD = 1024;
+	/**
+	 * Max size of a decoded task response.
+	 */
+	private static final int MAX_TASK_LENGTH = 16 * 1024 * 1024;
 
 	public static void main(String[] args) {
-		if (3 != args.length) {
+		if (3 != args.length && 4 != args.length) {
 			usage();
 			return;
 		}
 		ClientJarRet client;
 		try {
+			int threadCount = 4 == args.length ? Integer.parseInt(args[3])
+					: Runtime.getRuntime().availableProcessors();
 			client = new ClientJarRet(args[0], args[1],
-					Integer.parseInt(args[2]));
+					Integer.parseInt(args[2]), threadCount);
 		} catch (NumberFormatException e) {
 			usage();
 			return;
@@ -50,6 +96,13 @@ public class ClientJarRet {
 			e.printStackTrace(System.err);
 			return;
 		}
+		try {
+			WorkerFactory.setJarCache(new JarCache(JAR_CACHE_DIRECTORY,
+					JAR_CACHE_MAX_SIZE));
+		} catch (IOException e) {
+			// Jars are loaded from the server
+			e.printStackTrace(System.err);
+		}
 		client.start();
 		// TODO scan System.in for shutdown in order to terminate client.
 	}
@@ -68,30 +121,155 @@ public class ClientJarRet {
 	 *            - Where to display usage infos.
 	 */
 	public static void usage(PrintStream out) {
-		out.println("Usage: ClientJarRet <clientID> <serverAddress> <serverPort>\n");
+		out.println("Usage: ClientJarRet <clientID> <serverAddress> <serverPort> [threadCount]");
+		out.println("    threadCount: number of tasks computed at the same time (default: number of processors)\n");
 	}
 
 	private final Logger logger = Logger.construct();
-	private final Thread thread;
+	private final Thread[] threads;
 	private final String clientID;
-	private final SocketChannel sc;
 	private final InetSocketAddress serverAddress;
-	private final ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
 	private final AtomicBoolean isRunning = new AtomicBoolean(false);
+	private final AtomicInteger runningThreads = new AtomicInteger();
+	private boolean isPrefetching = true;
 
-	private TaskWorker taskWorker;
-
+	/**
+	 * Create a client with a single thread.
+	 */
 	public ClientJarRet(String clientID, String address, int port)
 			throws IOException {
+		this(clientID, address, port, 1);
+	}
 
+	/**
+	 * Create a client.
+	 * 
+	 * @param clientID
+	 *            - Id sent with answers.
+	 * @param address
+	 *            - Server address.
+	 * @param port
+	 *            - Server port.
+	 * @param threadCount
+	 *            - Number of tasks computed at the same time.
+	 * @throws IOException
+	 *             - If a connection cannot be opened.
+	 */
+	public ClientJarRet(String clientID, String address, int port,
+			int threadCount) throws IOException {
+		if (threadCount <= 0) {
+			throw new IllegalArgumentException(
+					"Thread count must be positive.");
+		}
 		serverAddress = new InetSocketAddress(address, port);
 		this.clientID = clientID;
-		sc = SocketChannel.open();
+		threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = new Thread(new Slot(), "worker-" + i);
+		}
+	}
+
+	/**
+	 * Start the client.
+	 */
+	public void start() {
+		if (isRunning.getAndSet(true)) {
+			throw new IllegalStateException("Client already isRunning.");
+		}
+		runningThreads.set(threads.length);
+		for (Thread thread : threads) {
+			thread.start();
+		}
+	}
+
+	/**
+	 * Choose if next tasks are fetched while current ones are computed. Each
+	 * thread then holds two batches at a time. Enabled by default.
+	 * 
+	 * @param isPrefetching
+	 *            - True to fetch tasks in advance.
+	 */
+	public void setPrefetching(boolean isPrefetching) {
+		if (isRunning.get()) {
+			throw new IllegalStateException("Client already isRunning.");
+		}
+		this.isPrefetching = isPrefetching;
+	}
+
+	/**
+	 * Stop the client.
+	 */
+	public void shutdown() {
+		logger.logInfos("Shutting down...");
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Check if client is isRunning.
+	 * 
+	 * @return True if client is isRunning.
+	 */
+	public boolean isrunning() {
+		return isRunning.get();
+	}
+
+	/**
+	 * One thread of the client, with its connection. It gets tasks, computes
+	 * them and sends answers, one batch after another. When prefetching, a
+	 * second thread uses the connection: it sends the answers of a batch and
+	 * gets the next batch, with its worker class, while the current one is
+	 * computed.
+	 */
+	private class Slot implements Runnable {
+		private final SocketChannel sc;
+		private final ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
+
+		private TaskWorker taskWorker;
+		/**
+		 * True if next task was requested along with the previous answer.
+		 */
+		private boolean isTaskRequested = false;
+		/**
+		 * Time in milliseconds before which server has no task, given by its
+		 * last response without task.
+		 */
+		private long comeBackAt = 0;
+		/**
+		 * True if server responds to an answer with the next task.
+		 */
+		private boolean isAnswerAndTaskSupported = false;
+		/**
+		 * Coding of answers, accepted by server in its last task response.
+		 */
+		private ContentEncoding answerEncoding = ContentEncoding.IDENTITY;
+		/**
+		 * Number of tasks to ask.
+		 */
+		private volatile int batchSize = 1;
+		/**
+		 * Mean time to compute a task, negative until a batch is computed.
+		 */
+		private double taskMillis = -1;
+		/**
+		 * Answers sent whose response is not read yet.
+		 */
+		private int answersSent = 0;
+
+		Slot() throws IOException {
+			sc = SocketChannel.open();
+		}
 
-		Runnable runnable = () -> {
+		@Override
+		public void run() {
 			try {
 				sc.connect(serverAddress);
 				logger.logInfos("Connected to server");
+				if (isPrefetching) {
+					runPrefetching();
+					return;
+				}
 				while (!Thread.interrupted()) {
 					try {
 						initializeTaskAndCompute();
@@ -112,320 +290,588 @@ public class ClientJarRet {
 			} catch (IOException e) {
 				e.printStackTrace(System.err);
 			} finally {
-				isRunning.set(false);
-				logger.logWarning("Client terminated.");
+				try {
+					sc.close();
+				} catch (IOException e) {
+					// Nothing to do
+				}
+				if (runningThreads.decrementAndGet() == 0) {
+					isRunning.set(false);
+					logger.logWarning("Client terminated.");
+				}
 			}
-		};
-		thread = new Thread(runnable);
-	}
+		}
 
-	/**
-	 * Start the client.
-	 */
-	public void start() {
-		if (isRunning.getAndSet(true)) {
-			throw new IllegalStateException("Client already isRunning.");
+		/**
+		 * Compute a batch while the network thread sends the answers of the
+		 * previous batch and gets the next one, in the same request if server
+		 * supports it. The next batch is leased by the server as soon as it
+		 * is received.
+		 * 
+		 * @throws IOException
+		 *             - If worker cannot be loaded.
+		 */
+		private void runPrefetching() throws IOException {
+			String name = Thread.currentThread().getName() + "-network";
+			ExecutorService network = Executors
+					.newSingleThreadExecutor(r -> new Thread(r, name));
+			try {
+				TaskWorker current = network.submit(() -> exchange(null, null))
+						.get();
+				TaskWorker answered = null;
+				List<Map<String, Object>> answers = null;
+				while (!Thread.interrupted()) {
+					TaskWorker previous = answered;
+					List<Map<String, Object>> results = answers;
+					if (previous == null && current == null) {
+						// Nothing to send nor to compute
+						logComeBack();
+						Thread.sleep(Math.max(0, comeBackAt
+								- System.currentTimeMillis()));
+					}
+					// Get the next batch before computing the current one
+					Future<TaskWorker> next = network.submit(() -> exchange(
+							previous, results));
+					answered = current;
+					answers = null;
+					if (current != null) {
+						answers = computeBatch(current);
+					}
+					current = next.get();
+				}
+			} catch (InterruptedException e) {
+				// Close client with thread.interrupt();
+			} catch (ExecutionException e) {
+				if (!(e.getCause() instanceof ClosedByInterruptException)) {
+					e.getCause().printStackTrace(System.err);
+				}
+			} finally {
+				network.shutdownNow();
+			}
 		}
-		thread.start();
-	}
 
-	/**
-	 * Stop the client.
-	 */
-	public void shutdown() {
-		logger.logInfos("Shutting down...");
-		thread.interrupt();
-	}
+		/**
+		 * Send answers of a batch, then get the next batch and load its
+		 * worker. Called by the network thread.
+		 * 
+		 * @param answered
+		 *            - Batch answered, null if there are no answers to send.
+		 * @param results
+		 *            - Results of the batch.
+		 * @return Next batch, null if it was not fully received.
+		 * @throws IOException
+		 *             - If some I/O error occurs.
+		 */
+		private TaskWorker exchange(TaskWorker answered,
+				List<Map<String, Object>> results) throws IOException {
+			if (answered != null) {
+				taskWorker = answered;
+				setBufferResults(results);
+				// The next batch is asked with the answers
+				sendAnswer();
+				getAnswerAndReset();
+			}
+			endTask();
+			// Never waits: answers of the batch computed meanwhile are not
+			// held while server has no task
+			tryFetchTask();
+			TaskWorker fetched = taskWorker;
+			endTask();
+			if (fetched != null) {
+				try {
+					// Load the worker class now, not when computing
+					fetched.releaseWorker(fetched.getWorker());
+				} catch (ClassNotFoundException | IllegalAccessException
+						| InstantiationException e) {
+					// Reported when computing
+				}
+			}
+			return fetched;
+		}
 
-	/**
-	 * Check if client is isRunning.
-	 * 
-	 * @return True if client is isRunning.
-	 */
-	public boolean isrunning() {
-		return isRunning.get();
-	}
+		/**
+		 * Send result to server. The next task is requested with the result: in
+		 * the same request if server supports it, otherwise by a request
+		 * pipelined in the same write, if it fits in the buffer.
+		 * 
+		 * @throws IOException
+		 *             - If some I/O error occurs.
+		 */
+		private void sendAnswer() throws IOException {
+			byte[] taskRequest = createTaskRequest();
+			if (isAnswerAndTaskSupported) {
+				isTaskRequested = true;
+			} else if (bb.remaining() >= taskRequest.length) {
+				bb.put(taskRequest);
+				isTaskRequested = true;
+			}
+			bb.flip();
+			sc.write(bb);
+			logger.logInfos("Result sent");
+			bb.clear();
+		}
 
-	/**
-	 * Send result to server.
-	 * 
-	 * @throws IOException
-	 *             - If some I/O error occurs.
-	 */
-	private void sendAnswer() throws IOException {
-		bb.flip();
-		sc.write(bb);
-		logger.logInfos("Result sent");
-		bb.clear();
-	}
+		/**
+		 * Read final response from server then reset job's data.
+		 * 
+		 * @throws IOException
+		 *             - If some I/O error occurs.
+		 */
+		private void getAnswerAndReset() throws IOException {
+			// Response to AnswerAndTask is the next task, read with it
+			for (; answersSent > 0; answersSent--) {
+				HTTPReader reader = new HTTPReader(sc, bb);
+				HTTPHeader header;
+				try {
+					header = reader.readHeader();
+				} catch (HTTPException e) {
+					logger.logWarning("Cannot read header");
+					answersSent = 0;
+					return;
+				}
+				int code = header.getCode();
+				switch (code) {
+				case 200:
+					break;
+				default:
+					logger.logWarning("Error from server: " + code);
+				}
+			}
+		}
 
-	/**
-	 * Read final response from server then reset job's data.
-	 * 
-	 * @throws IOException
-	 *             - If some I/O error occurs.
-	 */
-	private void getAnswerAndReset() throws IOException {
-		// Answer sent
-		HTTPReader reader = new HTTPReader(sc, bb);
-		HTTPHeader header;
-		try {
-			header = reader.readHeader();
-		} catch (HTTPException e) {
-			logger.logWarning("Cannot read header");
-			return;
+		/**
+		 * Get task from server, execute it then fill ByteBuffer.
+		 * 
+		 * @throws IOException
+		 *             - If some I/O error occurs.
+		 */
+		private void initializeTaskAndCompute() throws IOException {
+			fetchTask();
+			if (taskWorker == null) {
+				// Content is not fully received
+				return;
+			}
+			setBufferResults(computeBatch(taskWorker));
+		}
+
+		/**
+		 * Get tasks from server in taskWorker, wait while server has none.
+		 * taskWorker stays null if response is not fully received.
+		 * 
+		 * @throws IOException
+		 *             - If some I/O error occurs.
+		 */
+		private void fetchTask() throws IOException {
+			while (taskWorker == null) {
+				// No taskWorker yet
+				if (!tryFetchTask()) {
+					return;
+				}
+				if (taskWorker == null) {
+					logComeBack();
+					long time;
+					while (comeBackAt > (time = System.currentTimeMillis())) {
+						try {
+							Thread.sleep(comeBackAt - time);
+						} catch (InterruptedException e1) {
+							e1.printStackTrace();
+						}
+					}
+				}
+			}
 		}
-		int code = header.getCode();
-		switch (code) {
-		case 200:
-			break;
-		default:
-			logger.logWarning("Error from server: " + code);
+
+		private void logComeBack() {
+			logger.logInfos("Waiting "
+					+ ((comeBackAt - System.currentTimeMillis()) / 1000)
+					+ " seconds...");
 		}
-	}
 
-	/**
-	 * Get task from server, execute it then fill ByteBuffer.
-	 * 
-	 * @throws IOException
-	 *             - If some I/O error occurs.
-	 */
-	private void initializeTaskAndCompute() throws IOException {
-		while (taskWorker == null) {
-			// No taskWorker yet
-			requestNewTask();
+		/**
+		 * Get tasks from server in taskWorker. If server has none, taskWorker
+		 * stays null and comeBackAt is when to ask again.
+		 * 
+		 * @return False if response is not fully received.
+		 * @throws IOException
+		 *             - If some I/O error occurs.
+		 */
+		private boolean tryFetchTask() throws IOException {
+			if (!isTaskRequested) {
+				requestNewTask();
+			}
+			isTaskRequested = false;
 			try {
 				getRequestedTask();
 			} catch (IllegalStateException e) {
 				// Content is not fully received
-				return;
+				return false;
 			} catch (NoTaskException e) {
 				// No taskWorker to work on
-				logger.logInfos("Waiting "
-						+ ((e.getUntil() - System.currentTimeMillis()) / 1000)
-						+ " seconds...");
-				long time;
-				while (e.getUntil() > (time = System.currentTimeMillis())) {
-					try {
-						Thread.sleep(e.getUntil() - time);
-					} catch (InterruptedException e1) {
-						e1.printStackTrace();
-					}
-				}
+				comeBackAt = e.getUntil();
 				endTask();
 			}
+			return true;
 		}
-		Worker worker;
-		try {
-			worker = taskWorker.getWorker();
-		} catch (ClassNotFoundException | IllegalAccessException
-				| InstantiationException e) {
-			// setBufferError(e.getMessage());
-			// This error should not be reported to the server.
-			throw new IOException("Invalid jar file.");
-		}
-		int taskNumber = Integer.parseInt(taskWorker.getJobId());
-		String result = null;
-		try {
-			result = worker.compute(taskNumber);
-		} catch (Exception e) {
-			setBufferError("Computation error");
-			return;
+
+		/**
+		 * Compute tasks of a batch.
+		 * 
+		 * @param batch
+		 *            - Tasks to compute.
+		 * @return Results, in the order of tasks.
+		 * @throws IOException
+		 *             - If worker cannot be loaded.
+		 */
+		private List<Map<String, Object>> computeBatch(TaskWorker batch)
+				throws IOException {
+			Worker worker;
+			try {
+				worker = batch.getWorker();
+			} catch (ClassNotFoundException | IllegalAccessException
+					| InstantiationException e) {
+				// setBufferError(e.getMessage());
+				// This error should not be reported to the server.
+				throw new IOException("Invalid jar file.");
+			}
+			List<String> tasks = batch.getTasks();
+			List<Map<String, Object>> results = new ArrayList<>(tasks.size());
+			long start = System.nanoTime();
+			try {
+				for (String task : tasks) {
+					results.add(compute(worker, task));
+				}
+			} finally {
+				batch.releaseWorker(worker);
+			}
+			adaptBatchSize((System.nanoTime() - start) / 1_000_000.0,
+					tasks.size());
+			return results;
 		}
-		if (null == result) {
-			setBufferError("Computation error");
-			return;
+
+		/**
+		 * Fill ByteBuffer with results of taskWorker, ready to send to server.
+		 * 
+		 * @param results
+		 *            - Results of all tasks of taskWorker.
+		 * @throws IOException
+		 *             - If some I/O error occurs.
+		 */
+		private void setBufferResults(List<Map<String, Object>> results)
+				throws IOException {
+			if (taskWorker.getTask() != null) {
+				// Single task: server may not know batched answers
+				Map<String, Object> result = results.get(0);
+				if (result.containsKey("Error")) {
+					setBufferError((String) result.get("Error"));
+				} else {
+					setBufferAnswer(result.get("Answer"));
+				}
+				return;
+			}
+			setBufferBatch(results);
 		}
-		Map<String, String> map = new HashMap<String, String>();
-		ObjectMapper mapper = new ObjectMapper();
-		try {
-			map = mapper.readValue(result,
-					new TypeReference<HashMap<String, Object>>() {
-					});
-		} catch (JsonParseException e) {
-			setBufferError("Answer is not valid JSON");
-			return;
-		} catch (JsonMappingException e) {
-			setBufferError("Answer is nested");
-			return;
+
+		/**
+		 * Compute one task.
+		 * 
+		 * @return Map with the <i>Task</i> field and an <i>Answer</i> or an
+		 *         <i>Error</i> field.
+		 */
+		private Map<String, Object> compute(Worker worker, String task) {
+			Map<String, Object> result = new HashMap<>();
+			result.put("Task", task);
+			String answer = null;
+			try {
+				answer = worker.compute(Integer.parseInt(task));
+			} catch (Exception e) {
+				// Reported below
+			}
+			if (null == answer) {
+				result.put("Error", "Computation error");
+				return result;
+			}
+			try {
+				Map<String, Object> map = JarRetCodec.MAP_READER.readValue(answer);
+				result.put("Answer", map);
+			} catch (JsonParseException e) {
+				result.put("Error", "Answer is not valid JSON");
+			} catch (JsonMappingException e) {
+				result.put("Error", "Answer is nested");
+			} catch (IOException e) {
+				result.put("Error", "Computation error");
+			}
+			return result;
 		}
-		setBufferAnswer(map);
-		return;
-	}
 
-	/**
-	 * Fill taskWorker field with response in ByteBuffer.
-	 * 
-	 * @throws NoTaskException
-	 * @throws IllegalStateException
-	 * @throws IOException
-	 *             - If some I/O error occurs.
-	 */
-	private void getRequestedTask() throws NoTaskException,
-			IllegalStateException, IOException {
-		HTTPReader reader = new HTTPReader(sc, bb);
-		HTTPHeader header = reader.readHeader();
-		taskWorker = newTaskWorker(header, reader);
-	}
+		/**
+		 * Choose the size of the next batch from the time spent on the last one.
+		 * 
+		 * @param millis
+		 *            - Time spent to compute the batch.
+		 * @param count
+		 *            - Number of tasks in the batch.
+		 */
+		private void adaptBatchSize(double millis, int count) {
+			double last = millis / count;
+			taskMillis = taskMillis < 0 ? last : TASK_MILLIS_WEIGHT * last
+					+ (1 - TASK_MILLIS_WEIGHT) * taskMillis;
+			double size = TARGET_BATCH_MILLIS / Math.max(taskMillis, 0.001);
+			batchSize = (int) Math.max(1, Math.min(MAX_BATCH_SIZE, size));
+		}
 
-	/**
-	 * Fill ByteBuffer with a error message, ready to send to server.
-	 * 
-	 * @param errorMessage
-	 *            - Message to send.
-	 * @throws IOException
-	 *             - If some I/O error occurs.
-	 */
-	private void setBufferError(String errorMessage) throws IOException {
-		ByteBuffer resultBb = constructResponse("Error", errorMessage);
-		addSendHeader(resultBb.position());
-		resultBb.flip();
-		bb.put(resultBb);
-		logger.logWarning("Generating error: " + errorMessage);
-	}
+		/**
+		 * Fill taskWorker field with response in ByteBuffer.
+		 * 
+		 * @throws NoTaskException
+		 * @throws IllegalStateException
+		 * @throws IOException
+		 *             - If some I/O error occurs.
+		 */
+		private void getRequestedTask() throws NoTaskException,
+				IllegalStateException, IOException {
+			HTTPReader reader = new HTTPReader(sc, bb);
+			HTTPHeader header = reader.readHeader();
+			if (header.getCode() != 200 || header.getContentLength() <= 0) {
+				// Answer refused or no task given
+				logger.logWarning("No task from server: " + header.getCode());
+				isAnswerAndTaskSupported = false;
+				return;
+			}
+			String supports = header.getFields().get(SUPPORTS_FIELD);
+			isAnswerAndTaskSupported = supports != null
+					&& supports.contains(ANSWER_AND_TASK);
+			answerEncoding = header.getAcceptEncoding();
+			taskWorker = newTaskWorker(header, reader);
+		}
 
-	/**
-	 * Fill ByteBuffer with a result message, ready to send to server.
-	 * 
-	 * @param answer
-	 *            - Result to send.
-	 * @throws IOException
-	 *             - If some I/O error occurs.
-	 */
-	private void setBufferAnswer(Object answer) throws IOException {
-		try {
-			ByteBuffer resultBb = constructResponse("Answer", answer);
-			addSendHeader(resultBb.position());
-			resultBb.flip();
-			bb.put(resultBb);
-			logger.logInfos("Generating result: " + answer);
-		} catch (BufferOverflowException e) {
-			bb.clear();
-			setBufferError("Too Long");
+		/**
+		 * Fill ByteBuffer with batched answers, ready to send to server, in a
+		 * single request.
+		 * 
+		 * @param results
+		 *            - Results of the tasks.
+		 * @throws IOException
+		 *             - If some I/O error occurs.
+		 */
+		private void setBufferBatch(List<Map<String, Object>> results)
+				throws IOException {
+			putAnswer(constructResponse("Results", results));
+			logger.logInfos("Generating " + results.size() + " results");
 		}
-	}
 
-	/**
-	 * Construct a response for the server.
-	 * 
-	 * @param key
-	 *            - <i>Error</i>, <i>Answer</i>, ... This is the context of msg.
-	 * @param msg
-	 *            - Message to send.
-	 * @return Built response.
-	 * @throws JsonProcessingException
-	 *             - If msg is not correct for the JSON mapper.
-	 */
-	private ByteBuffer constructResponse(String key, Object msg)
-			throws JsonProcessingException {
-		Map<String, Object> map = taskWorker.buildMap();
-		map.put("ClientId", clientID);
-		map.put(key, msg);
-		return getEncodedResponse(map);
-	}
+		/**
+		 * Put an answer with its header, compressed if it is large.
+		 * 
+		 * @param content
+		 *            - Content of the answer.
+		 * @throws IOException
+		 *             - If some I/O error occurs.
+		 */
+		private void putAnswer(byte[] content) throws IOException {
+			ContentEncoding encoding = ContentEncoding.IDENTITY;
+			if (content.length > COMPRESSION_THRESHOLD) {
+				encoding = answerEncoding;
+			}
+			byte[] encoded = encoding.encode(content);
+			addSendHeader(encoded.length, encoding);
+			putContent(encoded);
+		}
 
-	/**
-	 * Encode response in a new ByteBuffer.
-	 * 
-	 * @param map
-	 *            - Datas to encode.
-	 * @return Encoded response.
-	 * @throws JsonProcessingException
-	 *             - If map is not correct for the JSON mapper.
-	 */
-	private ByteBuffer getEncodedResponse(Map<String, Object> map)
-			throws JsonProcessingException {
-		ObjectMapper mapper = new ObjectMapper();
-		ByteBuffer bb = CHARSET.encode(mapper.writeValueAsString(map));
-		bb.compact();
-		return bb;
-	}
+		/**
+		 * Put content after its header. Content which does not fit in the
+		 * buffer is sent at once, after the buffer, without being copied.
+		 * 
+		 * @param content
+		 *            - Content of the request.
+		 * @throws IOException
+		 *             - If some I/O error occurs.
+		 */
+		private void putContent(byte[] content) throws IOException {
+			if (content.length <= bb.remaining()) {
+				bb.put(content);
+				return;
+			}
+			bb.flip();
+			ByteBuffer[] request = { bb, ByteBuffer.wrap(content) };
+			while (request[1].hasRemaining()) {
+				sc.write(request);
+			}
+			bb.clear();
+		}
 
-	/**
-	 * 
-	 * @param size
-	 * @throws IOException
-	 */
-	private void addSendHeader(int size) throws IOException {
-		Map<String, String> fields = new HashMap<>();
-		fields.put("Host", sc.getRemoteAddress().toString());
-		fields.put("Content-Type",
-				"application/json; charset=" + CHARSET.name());
-		fields.put("Content-Length", size + "");
-		HTTPHeader header = HTTPHeader.createRequestHeader(
-				"POST Answer HTTP/1.1", fields);
-		bb.put(header.toBytes());
-	}
+		/**
+		 * Fill ByteBuffer with a error message, ready to send to server.
+		 * 
+		 * @param errorMessage
+		 *            - Message to send.
+		 * @throws IOException
+		 *             - If some I/O error occurs.
+		 */
+		private void setBufferError(String errorMessage) throws IOException {
+			putAnswer(constructResponse("Error", errorMessage));
+			logger.logWarning("Generating error: " + errorMessage);
+		}
 
-	/**
-	 * Call this once all work is done.
-	 */
-	private void endTask() {
-		taskWorker = null;
-	}
+		/**
+		 * Fill ByteBuffer with a result message, ready to send to server.
+		 * 
+		 * @param answer
+		 *            - Result to send.
+		 * @throws IOException
+		 *             - If some I/O error occurs.
+		 */
+		private void setBufferAnswer(Object answer) throws IOException {
+			putAnswer(constructResponse("Answer", answer));
+			logger.logInfos("Generating result: " + answer);
+		}
 
-	/**
-	 * Send a request to get a new taskWorker.
-	 * 
-	 * @param sc
-	 *            - Server channel.
-	 * @throws IOException
-	 */
-	private void requestNewTask() throws IOException {
-		Map<String, String> fields = new HashMap<>();
-		fields.put("Host", sc.getRemoteAddress().toString());
-		HTTPHeader header = HTTPHeader.createRequestHeader("GET Task HTTP/1.1",
-				fields);
-		bb.put(header.toBytes());
-		bb.flip();
-		logger.logInfos("Requesting new task...");
-		sc.write(bb);
-		bb.compact();
-	}
+		/**
+		 * Construct a response for the server.
+		 * 
+		 * @param key
+		 *            - <i>Error</i>, <i>Answer</i>, ... This is the context of msg.
+		 * @param msg
+		 *            - Message to send.
+		 * @return Built response.
+		 * @throws JsonProcessingException
+		 *             - If msg is not correct for the JSON mapper.
+		 */
+		private byte[] constructResponse(String key, Object msg)
+				throws JsonProcessingException {
+			Map<String, Object> map = taskWorker.buildMap();
+			map.put("ClientId", clientID);
+			map.put(key, msg);
+			return JarRetCodec.MAP_WRITER.writeValueAsBytes(map);
+		}
 
-	/**
-	 * Get a taskWorker from server.
-	 * 
-	 * @param header
-	 * 
-	 * @param channel
-	 * 
-	 * @return new TaskWorker
-	 * @throws IOException
-	 * @throws NoTaskException
-	 */
-	private TaskWorker newTaskWorker(HTTPHeader header, HTTPReader reader)
-			throws IOException, NoTaskException, IllegalStateException {
-		ByteBuffer bbIn = reader.readBytes(header.getContentLength());
-		bbIn.flip();
-		String response = header.getCharset().decode(bbIn).toString();
-		ObjectMapper mapper = new ObjectMapper();
-
-		// http://stackoverflow.com/questions/23469784/com-fasterxml-jackson-databind-exc-unrecognizedpropertyexception-unrecognized-f
-		mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
-		mapper.setVisibilityChecker(VisibilityChecker.Std.defaultInstance()
-				.withFieldVisibility(JsonAutoDetect.Visibility.ANY));
-
-		TaskWorker taskWorker;
-		try {
-			taskWorker = mapper.readValue(response, TaskWorker.class);
-			logger.logInfos("Worker: " + taskWorker.getJobTaskNumber()
-					+ "    Job: " + taskWorker.getJobId());
-		} catch (JsonMappingException e) {
-			JsonFactory factory = new JsonFactory();
-			JsonParser parser = factory.createParser(response);
-			if (parser.nextValue() == null) {
-				throw new IllegalStateException("Empty response");
+		/**
+		 * Put the header of an answer, after previous requests if it fits.
+		 * 
+		 * @param size
+		 * @param encoding
+		 * @throws IOException
+		 */
+		private void addSendHeader(int size, ContentEncoding encoding)
+				throws IOException {
+			String path = isAnswerAndTaskSupported ? ANSWER_AND_TASK : "Answer";
+			if (path.equals("Answer")) {
+				answersSent++;
+			}
+			byte[] header = createAnswerHeader(path, size, encoding);
+			if (header.length > bb.remaining()) {
+				// Send previous requests first
+				bb.flip();
+				while (bb.hasRemaining()) {
+					sc.write(bb);
+				}
+				bb.clear();
 			}
-			throw new NoTaskException(parser.getIntValue());
+			bb.put(header);
 		}
-		if (!taskWorker.isValid()) {
-			HashMap<String, Integer> map = mapper.readValue(response,
-					new TypeReference<HashMap<String, Integer>>() {
-					});
-			int comeBackIn = map.get("ComeBackInSeconds");
-			throw new NoTaskException(comeBackIn * 1000);
+
+		/**
+		 * Build the header of an answer.
+		 * 
+		 * @param path
+		 *            - <i>Answer</i> or <i>AnswerAndTask</i>.
+		 * @param size
+		 *            - Size of the content.
+		 * @param encoding
+		 *            - Coding of the content.
+		 * @return Encoded header.
+		 * @throws IOException
+		 */
+		private byte[] createAnswerHeader(String path, int size,
+				ContentEncoding encoding) throws IOException {
+			Map<String, String> fields = new HashMap<>();
+			fields.put("Host", sc.getRemoteAddress().toString());
+			fields.put("Content-Type",
+					"application/json; charset=" + CHARSET.name());
+			fields.put("Content-Length", size + "");
+			if (encoding != ContentEncoding.IDENTITY) {
+				fields.put("Content-Encoding", encoding.getToken());
+			}
+			fields.put(BATCH_SIZE_FIELD, batchSize + "");
+			HTTPHeader header = HTTPHeader.createRequestHeader("POST " + path
+					+ " HTTP/1.1", fields);
+			return header.toBytes();
+		}
+
+		/**
+		 * Call this once all work is done.
+		 */
+		private void endTask() {
+			taskWorker = null;
+		}
+
+		/**
+		 * Send a request to get a new taskWorker.
+		 * 
+		 * @param sc
+		 *            - Server channel.
+		 * @throws IOException
+		 */
+		private void requestNewTask() throws IOException {
+			bb.put(createTaskRequest());
+			bb.flip();
+			logger.logInfos("Requesting new task...");
+			sc.write(bb);
+			bb.compact();
+		}
+
+		/**
+		 * Build a request for a new taskWorker.
+		 * 
+		 * @return Encoded request.
+		 * @throws IOException
+		 */
+		private byte[] createTaskRequest() throws IOException {
+			Map<String, String> fields = new HashMap<>();
+			fields.put("Host", sc.getRemoteAddress().toString());
+			fields.put(BATCH_SIZE_FIELD, batchSize + "");
+			fields.put("Accept-Encoding", ContentEncoding.ACCEPTED);
+			HTTPHeader header = HTTPHeader.createRequestHeader("GET Task HTTP/1.1",
+					fields);
+			return header.toBytes();
+		}
+
+		/**
+		 * Get a taskWorker from server.
+		 * 
+		 * @param header
+		 * 
+		 * @param channel
+		 * 
+		 * @return new TaskWorker
+		 * @throws IOException
+		 * @throws NoTaskException
+		 */
+		private TaskWorker newTaskWorker(HTTPHeader header, HTTPReader reader)
+				throws IOException, NoTaskException, IllegalStateException {
+			ByteBuffer bbIn = reader.readContent(header, MAX_TASK_LENGTH);
+			bbIn.flip();
+			String response = header.getCharset().decode(bbIn).toString();
+
+			TaskWorker taskWorker;
+			try {
+				taskWorker = JarRetCodec.TASK_WORKER_READER.readValue(response);
+				logger.logInfos("Worker: " + taskWorker.getJobTaskNumber()
+						+ "    Job: " + taskWorker.getJobId());
+			} catch (JsonMappingException e) {
+				JsonParser parser = JarRetCodec.getFactory().createParser(response);
+				if (parser.nextValue() == null) {
+					throw new IllegalStateException("Empty response");
+				}
+				throw new NoTaskException(parser.getIntValue());
+			}
+			if (!taskWorker.isValid() || taskWorker.getTasks().isEmpty()) {
+				Map<String, Object> map = JarRetCodec.MAP_READER
+						.readValue(response);
+				int comeBackIn = ((Number) map.get("ComeBackInSeconds"))
+						.intValue();
+				throw new NoTaskException(comeBackIn * 1000);
+			}
+			return taskWorker;
 		}
-		return taskWorker;
 	}
-}
\ No newline at end of file
+}
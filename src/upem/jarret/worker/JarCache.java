@@ -0,0 +1,195 @@
+package upem.jarret.worker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Jars of workers saved on disk, so that a restarted client does not download
+ * them again. A jar is identified by its URL and the version of its worker.
+ * Its SHA-256 checksum is saved with it and checked before each use: a
+ * corrupted jar is downloaded again. When the directory exceeds its max size,
+ * least recently used jars are removed.
+ * <p>
+ * Jars are written in a temporary file then moved, so that several clients can
+ * share the same directory.
+ */
+public class JarCache {
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final String JAR_EXTENSION = ".jar";
+	private static final String CHECKSUM_EXTENSION = ".sha256";
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Path directory;
+	private final long maxSize;
+
+	/**
+	 * @param directory
+	 *            - Where jars are saved, created if needed.
+	 * @param maxSize
+	 *            - Max size of saved jars, in bytes.
+	 * @throws IOException
+	 *             - If directory cannot be created.
+	 */
+	public JarCache(String directory, long maxSize) throws IOException {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Max size must be positive.");
+		}
+		this.directory = Paths.get(directory);
+		this.maxSize = maxSize;
+		Files.createDirectories(this.directory);
+	}
+
+	/**
+	 * Get the local copy of a jar, download it if it is not saved or if it is
+	 * corrupted.
+	 *
+	 * @param url
+	 *            - Location of the jar.
+	 * @param version
+	 *            - Version of the worker, may be null.
+	 * @return Path of the saved jar.
+	 * @throws IOException
+	 *             - If jar cannot be downloaded or saved.
+	 */
+	public synchronized Path get(String url, String version)
+			throws IOException {
+		String name = toHex(digest().digest((url + "\n" + version)
+				.getBytes(CHARSET)));
+		Path jar = directory.resolve(name + JAR_EXTENSION);
+		Path checksum = directory.resolve(name + CHECKSUM_EXTENSION);
+		if (isValid(jar, checksum)) {
+			// Most recently used
+			Files.setLastModifiedTime(jar,
+					FileTime.fromMillis(System.currentTimeMillis()));
+			return jar;
+		}
+		download(url, jar, checksum);
+		evict(jar);
+		return jar;
+	}
+
+	private boolean isValid(Path jar, Path checksum) throws IOException {
+		if (!Files.exists(jar) || !Files.exists(checksum)) {
+			return false;
+		}
+		String expected = new String(Files.readAllBytes(checksum), CHARSET)
+				.trim();
+		try (InputStream in = Files.newInputStream(jar)) {
+			return expected.equals(copy(in, null));
+		}
+	}
+
+	private void download(String url, Path jar, Path checksum)
+			throws IOException {
+		Path tmpJar = Files.createTempFile(directory, "download", ".tmp");
+		Path tmpChecksum = Files.createTempFile(directory, "checksum", ".tmp");
+		try {
+			String sum;
+			try (InputStream in = new URL(url).openStream();
+					OutputStream out = Files.newOutputStream(tmpJar)) {
+				sum = copy(in, out);
+			}
+			Files.write(tmpChecksum, sum.getBytes(CHARSET));
+			Files.move(tmpJar, jar, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			Files.move(tmpChecksum, checksum,
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmpJar);
+			Files.deleteIfExists(tmpChecksum);
+		}
+	}
+
+	/**
+	 * Remove least recently used jars until directory fits in maxSize.
+	 *
+	 * @param kept
+	 *            - Jar never removed.
+	 */
+	private void evict(Path kept) throws IOException {
+		List<Path> jars = new ArrayList<>();
+		long size = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+				directory, "*" + JAR_EXTENSION)) {
+			for (Path jar : stream) {
+				jars.add(jar);
+				size += Files.size(jar);
+			}
+		}
+		jars.sort((a, b) -> {
+			try {
+				return Files.getLastModifiedTime(a).compareTo(
+						Files.getLastModifiedTime(b));
+			} catch (IOException e) {
+				return 0;
+			}
+		});
+		for (Path jar : jars) {
+			if (size <= maxSize) {
+				return;
+			}
+			if (jar.equals(kept)) {
+				continue;
+			}
+			size -= Files.size(jar);
+			String name = jar.getFileName().toString();
+			Files.deleteIfExists(jar);
+			Files.deleteIfExists(directory.resolve(name.substring(0,
+					name.length() - JAR_EXTENSION.length())
+					+ CHECKSUM_EXTENSION));
+		}
+	}
+
+	/**
+	 * Copy a stream and compute its checksum.
+	 *
+	 * @param out
+	 *            - Where to copy, null to only compute checksum.
+	 * @return SHA-256 of the content, in hexadecimal.
+	 */
+	private static String copy(InputStream in, OutputStream out)
+			throws IOException {
+		MessageDigest digest = digest();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			digest.update(buffer, 0, read);
+			if (out != null) {
+				out.write(buffer, 0, read);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM has SHA-256
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(
+					Character.forDigit(b & 0xF, 16));
+		}
+		return builder.toString();
+	}
+}
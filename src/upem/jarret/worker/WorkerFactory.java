@@ -1,16 +1,152 @@
 package upem.jarret.worker;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 
+/**
+ * Load workers from jars. Loaded classes are kept in a LRU cache shared by all
+ * threads of the JVM, with instances given back by their users, so that a jar
+ * is downloaded and its classes are loaded and compiled once. The class loader
+ * of an evicted class is closed once none of its workers is used anymore.
+ * <p>
+ * Jars can also be saved on disk with a JarCache, to be loaded locally after a
+ * restart.
+ */
 public class WorkerFactory {
 	/**
+	 * Max number of worker classes kept loaded.
+	 */
+	private static final int MAX_CLASSES = 16;
+	/**
+	 * Max number of unused instances kept for each class.
+	 */
+	private static final int MAX_IDLE_WORKERS = 64;
+
+	/**
+	 * Loaded classes, least recently used first.
+	 */
+	private static final LinkedHashMap<Key, CachedClass> entries = new LinkedHashMap<Key, CachedClass>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<Key, CachedClass> eldest) {
+			if (size() <= MAX_CLASSES) {
+				return false;
+			}
+			eldest.getValue().evict();
+			return true;
+		}
+	};
+	/**
+	 * All classes with workers given or kept, evicted ones included.
+	 */
+	private static final HashMap<Class<?>, CachedClass> byClass = new HashMap<>();
+	/**
+	 * Where jars are saved, null to load them from their URL.
+	 */
+	private static volatile JarCache jarCache;
+
+	/**
+	 * Save jars on disk before loading them.
+	 *
+	 * @param cache
+	 *            - Jars saved on disk, null to load jars from their URL.
+	 */
+	public static void setJarCache(JarCache cache) {
+		jarCache = cache;
+	}
+
+	/**
+	 * Identity of a worker class.
+	 */
+	private static class Key {
+		private final String url;
+		private final String className;
+		private final String version;
+
+		Key(String url, String className, String version) {
+			this.url = url;
+			this.className = className;
+			this.version = version;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) obj;
+			return key.url.equals(url) && key.className.equals(className)
+					&& Objects.equals(key.version, version);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(url, className, version);
+		}
+	}
+
+	/**
+	 * A loaded class with its class loader and its unused instances. All
+	 * fields are guarded by the lock of entries.
+	 */
+	private static class CachedClass {
+		private final URLClassLoader classLoader;
+		private final Class<?> theClass;
+		private final ArrayDeque<Worker> idle = new ArrayDeque<>();
+		/**
+		 * Number of workers given and not released.
+		 */
+		private int inUse = 0;
+		private boolean isEvicted = false;
+
+		CachedClass(URLClassLoader classLoader, Class<?> theClass) {
+			this.classLoader = classLoader;
+			this.theClass = theClass;
+		}
+
+		void evict() {
+			isEvicted = true;
+			idle.clear();
+			if (inUse == 0) {
+				byClass.remove(theClass);
+				close(classLoader);
+			}
+		}
+	}
+
+	/**
+	 * Give a worker of a class loaded without version.
+	 *
+	 * @see #getWorker(String, String, String)
+	 */
+	public static Worker getWorker(String url, String className)
+			throws MalformedURLException, ClassNotFoundException,
+			IllegalAccessException, InstantiationException {
+		return getWorker(url, className, null);
+	}
+
+	/**
+	 * Give a worker. It should be given back with releaseWorker() once it is
+	 * not used anymore, it is then given again instead of a new instance.
+	 * Each worker is used by a single thread at a time.
 	 *
 	 * @param url
 	 *            location of the jar
 	 * @param className
 	 *            name of the class implementing fr.upem.jarret.worker.Worker
+	 * @param version
+	 *            version of the worker, classes of different versions are
+	 *            loaded separately
 	 * @return An instance of className from the jar located at URL
 	 * @throws java.net.MalformedURLException
 	 *             if the url is malformed
@@ -22,14 +158,117 @@ public class WorkerFactory {
 	 * @throws java.lang.ClassCastException
 	 *             (unchecked) if the cast to fr.upem.jarret.worker.Worker failed
 	 */
-	public static Worker getWorker(String url, String className)
-			throws MalformedURLException, ClassNotFoundException,
-			IllegalAccessException, InstantiationException {
-		URL urls[] = { new URL("jar", "", url + "!/") };
+	public static Worker getWorker(String url, String className,
+			String version) throws MalformedURLException,
+			ClassNotFoundException, IllegalAccessException,
+			InstantiationException {
+		Key key = new Key(url, className, version);
+		CachedClass entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null) {
+				entry.inUse++;
+				Worker worker = entry.idle.poll();
+				if (worker != null) {
+					return worker;
+				}
+			}
+		}
+		if (entry == null) {
+			// Load outside of the lock, the jar may be downloaded
+			entry = load(key);
+		}
+		try {
+			return (Worker) entry.theClass.newInstance();
+		} catch (RuntimeException | IllegalAccessException
+				| InstantiationException e) {
+			release(entry);
+			throw e;
+		}
+	}
+
+	/**
+	 * Give back a worker given by getWorker(), it may be given again.
+	 *
+	 * @param worker
+	 *            worker not used anymore by the caller
+	 */
+	public static void releaseWorker(Worker worker) {
+		synchronized (entries) {
+			CachedClass entry = byClass.get(worker.getClass());
+			if (entry == null) {
+				// Not given by this factory
+				return;
+			}
+			if (!entry.isEvicted && entry.idle.size() < MAX_IDLE_WORKERS) {
+				entry.idle.offer(worker);
+			}
+			release(entry);
+		}
+	}
+
+	private static CachedClass load(Key key) throws MalformedURLException,
+			ClassNotFoundException {
+		URL urls[] = { new URL("jar", "", getJarURL(key) + "!/") };
 		URLClassLoader urlClassLoader = new URLClassLoader(urls, Thread
 				.currentThread().getContextClassLoader());
-		Class<?> theClass = Class.forName(className, true, urlClassLoader);
-		return (Worker) theClass.newInstance();
+		Class<?> theClass;
+		try {
+			theClass = Class.forName(key.className, true, urlClassLoader);
+		} catch (ClassNotFoundException | RuntimeException | Error e) {
+			close(urlClassLoader);
+			throw e;
+		}
+		synchronized (entries) {
+			CachedClass entry = entries.get(key);
+			if (entry != null) {
+				// Loaded at the same time by another thread
+				close(urlClassLoader);
+			} else {
+				entry = new CachedClass(urlClassLoader, theClass);
+				entries.put(key, entry);
+				byClass.put(theClass, entry);
+			}
+			entry.inUse++;
+			return entry;
+		}
+	}
+
+	/**
+	 * @return URL of the local copy of the jar if it can be saved, its
+	 *         original URL otherwise.
+	 */
+	private static String getJarURL(Key key) {
+		JarCache cache = jarCache;
+		if (cache == null) {
+			return key.url;
+		}
+		try {
+			return cache.get(key.url, key.version).toUri().toURL().toString();
+		} catch (IOException e) {
+			// Disk cache is not usable, load from the original URL
+			return key.url;
+		}
+	}
+
+	/**
+	 * Count a worker as not used anymore.
+	 */
+	private static void release(CachedClass entry) {
+		synchronized (entries) {
+			entry.inUse--;
+			if (entry.isEvicted && entry.inUse == 0) {
+				byClass.remove(entry.theClass);
+				close(entry.classLoader);
+			}
+		}
+	}
 
+	private static void close(URLClassLoader classLoader) {
+		try {
+			classLoader.close();
+		} catch (IOException e) {
+			// Jar is not used anymore
+		}
 	}
-}
\ No newline at end of file
+}
@@ -1,135 +1,345 @@
-package upem.logger;
-
-import java.io.File;
-import java.io.IOException;
-import java.io.PrintStream;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-
-public class Logger {
-	private final PrintStream outInfos;
-	private final PrintStream outWarning;
-	private final PrintStream outError;
-	private final SimpleDateFormat dateFormatLog = new SimpleDateFormat(
-			"yyyy/MM/dd HH:mm:ss");
-
-	private Logger(PrintStream logInfoPath, PrintStream logWarningPath,
-			PrintStream logErrorPath) {
-		this.outInfos = logInfoPath;
-		this.outWarning = logWarningPath;
-		this.outError = logErrorPath;
-
-	}
-
-	public static Logger construct(String logInfoPath, String logWarningPath,
-			String logErrorPath) throws IOException {
-		PrintStream outInfos;
-		PrintStream outWarning;
-		PrintStream outError;
-		if (null == logInfoPath || logInfoPath.isEmpty()) {
-			outInfos = System.out;
-		} else {
-			File file = new File(logInfoPath);
-			if (!file.exists()) {
-				file.getParentFile().mkdirs();
-				if (!file.createNewFile()) {
-					throw new IOException("Cannot create logInfo file");
-				}
-			}
-			outInfos = new PrintStream(file);
-		}
-
-		if (null == logWarningPath || logWarningPath.isEmpty()) {
-			outWarning = System.err;
-		} else {
-			File file = new File(logWarningPath);
-			if (!file.exists()) {
-				file.getParentFile().mkdirs();
-				if (!file.createNewFile()) {
-					throw new IOException("Cannot create logWarning file");
-				}
-			}
-			outWarning = new PrintStream(file);
-		}
-
-		if (null == logErrorPath || logErrorPath.isEmpty()) {
-			outError = System.err;
-		} else {
-			File file = new File(logErrorPath);
-			if (!file.exists()) {
-				file.getParentFile().mkdirs();
-				if (!file.createNewFile()) {
-					throw new IOException("Cannot create logError file");
-				}
-			}
-			outError = new PrintStream(file);
-		}
-		return new Logger(outInfos, outWarning, outError);
-	}
-
-	public static Logger construct() throws IOException {
-		return new Logger(System.out, System.err, System.err);
-	}
-
-	public boolean logInfos(Object message) {
-		if (outInfos == null) {
-			return false;
-		}
-		logLevel(outInfos, message.toString(), "Infos");
-		return true;
-	}
-
-	public boolean logInfos(Object message, Exception e) {
-		if (outInfos == null) {
-			return false;
-		}
-		logLevel(outInfos, message.toString(), e, "Error");
-		return true;
-	}
-
-	public boolean logWarning(Object message) {
-		if (outWarning == null) {
-			return false;
-		}
-		logLevel(outWarning, message.toString(), "Warning");
-		return true;
-	}
-
-	public boolean logWarning(Object message, Exception e) {
-		if (outWarning == null) {
-			return false;
-		}
-		logLevel(outWarning, message.toString(), e, "Error");
-		return true;
-	}
-
-	public boolean logError(Object message) {
-		if (outError == null) {
-			return false;
-		}
-		logLevel(outError, message.toString(), "Error");
-		return true;
-	}
-
-	public boolean logError(Object message, Exception e) {
-		if (outError == null) {
-			return false;
-		}
-		logLevel(outError, message.toString(), e, "Error");
-		return true;
-	}
-
-	private void logLevel(PrintStream out, String message, String level) {
-		StringBuilder stringBuilder = new StringBuilder();
-		stringBuilder.append("[").append(level).append("][")
-				.append(dateFormatLog.format(Calendar.getInstance().getTime()))
-				.append("] ").append(message);
-		out.println(stringBuilder.toString());
-	}
-
-	private void logLevel(PrintStream out, String message, Exception e,
-			String level) {
-		logLevel(out, message, level);
-		e.printStackTrace(out);
-	}
-}
+package upem.logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs written by a background thread, so that callers never wait for the
+ * disk. Messages are put in a bounded ring buffer without lock, by any number
+ * of threads; the background thread formats them and writes them by batch,
+ * then flushes. If the buffer is full, callers wait for free slots: messages
+ * are never lost, even when logs are written slower than produced.
+ * <p>
+ * Messages below the level of the logger are ignored before being queued.
+ */
+public class Logger {
+	/**
+	 * Lowest level of logged messages.
+	 */
+	public enum Level {
+		INFO, WARNING, ERROR
+	}
+
+	/**
+	 * Number of messages waiting for the background thread, a power of two.
+	 */
+	private static final int CAPACITY = 8192;
+	private static final int MASK = CAPACITY - 1;
+	/**
+	 * The background thread is woken up each time this number of messages
+	 * are put, so that it does not sleep while the buffer fills up.
+	 */
+	private static final int WAKE_UP_MASK = CAPACITY / 4 - 1;
+	/**
+	 * Time the background thread sleeps when no message is waiting.
+	 */
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/**
+	 * Immutable, can be shared by threads logging at the same time.
+	 */
+	private static final DateTimeFormatter dateFormatLog = DateTimeFormatter
+			.ofPattern("yyyy/MM/dd HH:mm:ss");
+
+	private final PrintStream outInfos;
+	private final PrintStream outWarning;
+	private final PrintStream outError;
+	private volatile Level level = Level.INFO;
+
+	/**
+	 * A message in the ring buffer. Slots are allocated once and reused.
+	 */
+	private static class Record {
+		PrintStream out;
+		String level;
+		String message;
+		Exception exception;
+		long time;
+	}
+
+	private final Record[] records = new Record[CAPACITY];
+	/**
+	 * For each slot, the sequence number of the next message it can hold if
+	 * it is free, this number plus one once the message is written.
+	 */
+	private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+	/**
+	 * Sequence number of the next message put.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+	/**
+	 * Sequence number of the next message written, only used by the
+	 * background thread.
+	 */
+	private long head = 0;
+	private final Thread thread;
+	private volatile boolean isClosed = false;
+
+	/**
+	 * Last formatted time, only used by the background thread.
+	 */
+	private long cachedSecond = -1;
+	private String cachedTime;
+	private final StringBuilder line = new StringBuilder();
+
+	private Logger(PrintStream logInfoPath, PrintStream logWarningPath,
+			PrintStream logErrorPath) {
+		this.outInfos = logInfoPath;
+		this.outWarning = logWarningPath;
+		this.outError = logErrorPath;
+		for (int i = 0; i < CAPACITY; i++) {
+			records[i] = new Record();
+			sequences.set(i, i);
+		}
+		thread = new Thread(this::run, "logger");
+		thread.setDaemon(true);
+		thread.start();
+		// Write waiting messages before the JVM exits
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+	}
+
+	public static Logger construct(String logInfoPath, String logWarningPath,
+			String logErrorPath) throws IOException {
+		PrintStream outInfos;
+		PrintStream outWarning;
+		PrintStream outError;
+		if (null == logInfoPath || logInfoPath.isEmpty()) {
+			outInfos = System.out;
+		} else {
+			File file = new File(logInfoPath);
+			if (!file.exists()) {
+				file.getParentFile().mkdirs();
+				if (!file.createNewFile()) {
+					throw new IOException("Cannot create logInfo file");
+				}
+			}
+			outInfos = open(file);
+		}
+
+		if (null == logWarningPath || logWarningPath.isEmpty()) {
+			outWarning = System.err;
+		} else {
+			File file = new File(logWarningPath);
+			if (!file.exists()) {
+				file.getParentFile().mkdirs();
+				if (!file.createNewFile()) {
+					throw new IOException("Cannot create logWarning file");
+				}
+			}
+			outWarning = open(file);
+		}
+
+		if (null == logErrorPath || logErrorPath.isEmpty()) {
+			outError = System.err;
+		} else {
+			File file = new File(logErrorPath);
+			if (!file.exists()) {
+				file.getParentFile().mkdirs();
+				if (!file.createNewFile()) {
+					throw new IOException("Cannot create logError file");
+				}
+			}
+			outError = open(file);
+		}
+		return new Logger(outInfos, outWarning, outError);
+	}
+
+	public static Logger construct() throws IOException {
+		return new Logger(System.out, System.err, System.err);
+	}
+
+	/**
+	 * Open a log file, flushed by the background thread after each batch.
+	 */
+	private static PrintStream open(File file) throws IOException {
+		return new PrintStream(new BufferedOutputStream(new FileOutputStream(
+				file), BUFFER_SIZE), false);
+	}
+
+	/**
+	 * Ignore messages below a level.
+	 *
+	 * @param level
+	 *            - Lowest level logged.
+	 */
+	public void setLevel(Level level) {
+		this.level = level;
+	}
+
+	/**
+	 * @return True if messages of this level are logged. Callers can check it
+	 *         before building a costly message.
+	 */
+	public boolean isEnabled(Level level) {
+		return level.compareTo(this.level) >= 0;
+	}
+
+	public boolean logInfos(Object message) {
+		return log(Level.INFO, outInfos, "Infos", message, null);
+	}
+
+	public boolean logInfos(Object message, Exception e) {
+		return log(Level.INFO, outInfos, "Error", message, e);
+	}
+
+	public boolean logWarning(Object message) {
+		return log(Level.WARNING, outWarning, "Warning", message, null);
+	}
+
+	public boolean logWarning(Object message, Exception e) {
+		return log(Level.WARNING, outWarning, "Error", message, e);
+	}
+
+	public boolean logError(Object message) {
+		return log(Level.ERROR, outError, "Error", message, null);
+	}
+
+	public boolean logError(Object message, Exception e) {
+		return log(Level.ERROR, outError, "Error", message, e);
+	}
+
+	/**
+	 * Write waiting messages, then stop the background thread. Messages
+	 * logged after are ignored.
+	 */
+	public void close() {
+		if (isClosed) {
+			return;
+		}
+		isClosed = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Put a message in the ring buffer.
+	 *
+	 * @return False if message is ignored.
+	 */
+	private boolean log(Level messageLevel, PrintStream out, String label,
+			Object message, Exception e) {
+		if (out == null || isClosed || !isEnabled(messageLevel)) {
+			return false;
+		}
+		while (true) {
+			long sequence = tail.get();
+			int index = (int) sequence & MASK;
+			long available = sequences.get(index);
+			if (available < sequence) {
+				// Full: slot still holds a message of the previous lap
+				if (isClosed) {
+					return false;
+				}
+				LockSupport.unpark(thread);
+				Thread.yield();
+				continue;
+			}
+			if (available == sequence
+					&& tail.compareAndSet(sequence, sequence + 1)) {
+				Record record = records[index];
+				record.out = out;
+				record.level = label;
+				record.message = message.toString();
+				record.exception = e;
+				record.time = System.currentTimeMillis();
+				// Publish the record to the background thread
+				sequences.set(index, sequence + 1);
+				if ((sequence & WAKE_UP_MASK) == WAKE_UP_MASK) {
+					LockSupport.unpark(thread);
+				}
+				return true;
+			}
+			// Slot taken by another thread, try the next one
+		}
+	}
+
+	/**
+	 * Loop of the background thread.
+	 */
+	private void run() {
+		while (true) {
+			boolean closed = isClosed;
+			if (!drain() && closed) {
+				return;
+			}
+			LockSupport.parkNanos(IDLE_NANOS);
+		}
+	}
+
+	/**
+	 * Write all waiting messages and flush written streams.
+	 *
+	 * @return False if no message was waiting.
+	 */
+	private boolean drain() {
+		boolean infos = false;
+		boolean warning = false;
+		boolean error = false;
+		while (true) {
+			int index = (int) head & MASK;
+			if (sequences.get(index) != head + 1) {
+				break;
+			}
+			Record record = records[index];
+			PrintStream out = record.out;
+			write(out, record.level, record.message, record.time);
+			if (record.exception != null) {
+				record.exception.printStackTrace(out);
+			}
+			infos |= out == outInfos;
+			warning |= out == outWarning;
+			error |= out == outError;
+			record.out = null;
+			record.message = null;
+			record.exception = null;
+			// Free the slot for the next lap
+			sequences.set(index, head + CAPACITY);
+			head++;
+		}
+		if (infos) {
+			outInfos.flush();
+		}
+		if (warning) {
+			outWarning.flush();
+		}
+		if (error) {
+			outError.flush();
+		}
+		return infos || warning || error;
+	}
+
+	private void write(PrintStream out, String level, String message, long time) {
+		line.setLength(0);
+		line.append("[").append(level).append("][").append(format(time))
+				.append("] ").append(message).append(System.lineSeparator());
+		out.print(line);
+	}
+
+	/**
+	 * Format a time, once per second.
+	 */
+	private String format(long time) {
+		long second = time / 1000;
+		if (second != cachedSecond) {
+			cachedSecond = second;
+			cachedTime = dateFormatLog.format(LocalDateTime.ofInstant(
+					Instant.ofEpochMilli(time), ZoneId.systemDefault()));
+		}
+		return cachedTime;
+	}
+}
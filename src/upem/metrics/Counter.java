@@ -0,0 +1,26 @@
+package upem.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Value which only increases, updated by several threads without contention.
+ */
+public class Counter {
+	private final LongAdder value = new LongAdder();
+
+	public void increment() {
+		value.increment();
+	}
+
+	/**
+	 * @param amount
+	 *            - Positive amount added.
+	 */
+	public void add(long amount) {
+		value.add(amount);
+	}
+
+	public long get() {
+		return value.sum();
+	}
+}
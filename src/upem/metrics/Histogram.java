@@ -0,0 +1,87 @@
+package upem.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations, counted in buckets with fixed upper bounds.
+ * Observations are updated by several threads without contention.
+ */
+public class Histogram {
+	/**
+	 * Default bounds, in seconds, from 100 microseconds to 10 seconds.
+	 */
+	public static final double[] LATENCY_BOUNDS = { 0.0001, 0.00025, 0.0005,
+			0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5,
+			10 };
+
+	private final double[] bounds;
+	/**
+	 * Observations per bucket, the last one has no upper bound.
+	 */
+	private final LongAdder[] counts;
+	private final DoubleAdder sum = new DoubleAdder();
+
+	/**
+	 * @param bounds
+	 *            - Upper bounds of the buckets, in increasing order.
+	 */
+	public Histogram(double... bounds) {
+		for (int i = 1; i < bounds.length; i++) {
+			if (bounds[i] <= bounds[i - 1]) {
+				throw new IllegalArgumentException(
+						"Bounds must be in increasing order.");
+			}
+		}
+		this.bounds = bounds.clone();
+		counts = new LongAdder[bounds.length + 1];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Count a duration.
+	 *
+	 * @param nanos
+	 *            - Duration, in nanoseconds.
+	 */
+	public void observeNanos(long nanos) {
+		observe((double) nanos / TimeUnit.SECONDS.toNanos(1));
+	}
+
+	/**
+	 * Count a value.
+	 *
+	 * @param value
+	 *            - Value, in the unit of the bounds.
+	 */
+	public void observe(double value) {
+		int i = 0;
+		while (i < bounds.length && value > bounds[i]) {
+			i++;
+		}
+		counts[i].increment();
+		sum.add(value);
+	}
+
+	double[] getBounds() {
+		return bounds;
+	}
+
+	/**
+	 * @return Number of observations of each bucket, not cumulated.
+	 */
+	long[] getCounts() {
+		long[] values = new long[counts.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = counts[i].sum();
+		}
+		return values;
+	}
+
+	double getSum() {
+		return sum.sum();
+	}
+}
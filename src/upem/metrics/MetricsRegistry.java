@@ -0,0 +1,162 @@
+package upem.metrics;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Metrics of a process, written in the Prometheus text format. Counters and
+ * histograms are updated by any thread; gauges and collectors are read when
+ * metrics are written.
+ */
+public class MetricsRegistry {
+	/**
+	 * Writes samples computed when metrics are written, such as samples with
+	 * labels.
+	 */
+	@FunctionalInterface
+	public interface Collector {
+		void collect(Writer writer);
+	}
+
+	/**
+	 * Builds the text of the metrics.
+	 */
+	public static class Writer {
+		private final StringBuilder builder = new StringBuilder();
+
+		/**
+		 * Start a metric, before its samples.
+		 *
+		 * @param type
+		 *            - counter, gauge or histogram.
+		 */
+		public Writer header(String name, String type, String help) {
+			builder.append("# HELP ").append(name).append(' ').append(help)
+					.append('\n').append("# TYPE ").append(name).append(' ')
+					.append(type).append('\n');
+			return this;
+		}
+
+		/**
+		 * Write a sample.
+		 *
+		 * @param labels
+		 *            - Names and values of labels, alternately.
+		 */
+		public Writer sample(String name, double value, String... labels) {
+			builder.append(name);
+			if (labels.length > 0) {
+				builder.append('{');
+				for (int i = 0; i + 1 < labels.length; i += 2) {
+					if (i > 0) {
+						builder.append(',');
+					}
+					builder.append(labels[i]).append("=\"");
+					escape(labels[i + 1]);
+					builder.append('"');
+				}
+				builder.append('}');
+			}
+			builder.append(' ');
+			if (value == Math.rint(value) && !Double.isInfinite(value)) {
+				builder.append((long) value);
+			} else {
+				builder.append(value);
+			}
+			builder.append('\n');
+			return this;
+		}
+
+		private void escape(String value) {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '\\' || c == '"') {
+					builder.append('\\').append(c);
+				} else if (c == '\n') {
+					builder.append("\\n");
+				} else {
+					builder.append(c);
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return builder.toString();
+		}
+	}
+
+	private final List<Collector> collectors = new ArrayList<>();
+
+	/**
+	 * Create a counter.
+	 *
+	 * @param name
+	 *            - Name of the metric, ending with _total.
+	 * @param help
+	 *            - Description of the metric.
+	 */
+	public Counter counter(String name, String help) {
+		Counter counter = new Counter();
+		add(writer -> writer.header(name, "counter", help).sample(name,
+				counter.get()));
+		return counter;
+	}
+
+	/**
+	 * Create a histogram.
+	 *
+	 * @param name
+	 *            - Name of the metric, with the unit of the bounds.
+	 * @param help
+	 *            - Description of the metric.
+	 * @param bounds
+	 *            - Upper bounds of the buckets, in increasing order.
+	 */
+	public Histogram histogram(String name, String help, double... bounds) {
+		Histogram histogram = new Histogram(bounds);
+		add(writer -> {
+			writer.header(name, "histogram", help);
+			long[] counts = histogram.getCounts();
+			double[] upper = histogram.getBounds();
+			long cumulated = 0;
+			for (int i = 0; i < counts.length; i++) {
+				cumulated += counts[i];
+				writer.sample(name + "_bucket", cumulated, "le",
+						i < upper.length ? BigDecimal.valueOf(upper[i])
+								.toPlainString() : "+Inf");
+			}
+			writer.sample(name + "_sum", histogram.getSum());
+			writer.sample(name + "_count", cumulated);
+		});
+		return histogram;
+	}
+
+	/**
+	 * Add a value read when metrics are written.
+	 */
+	public void gauge(String name, String help, DoubleSupplier value) {
+		add(writer -> writer.header(name, "gauge", help).sample(name,
+				value.getAsDouble()));
+	}
+
+	/**
+	 * Add samples computed when metrics are written.
+	 */
+	public synchronized void add(Collector collector) {
+		collectors.add(collector);
+	}
+
+	/**
+	 * @return All metrics, in the order they were added.
+	 */
+	public synchronized String scrape() {
+		Writer writer = new Writer();
+		for (Collector collector : collectors) {
+			collector.collect(writer);
+		}
+		return writer.toString();
+	}
+}
@@ -0,0 +1,139 @@
+package upem.net.tcp.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content codings of the Content-Encoding and Accept-Encoding fields. A
+ * sender only encodes a content with a coding accepted by the receiver: a
+ * server lists codings it accepts in the Accept-Encoding field of its
+ * responses (RFC 7694).
+ */
+public enum ContentEncoding {
+	IDENTITY("identity"), GZIP("gzip"), DEFLATE("deflate");
+
+	/**
+	 * Value of an Accept-Encoding field listing all supported codings,
+	 * preferred first.
+	 */
+	public static final String ACCEPTED = "gzip, deflate";
+
+	private final String token;
+
+	private ContentEncoding(String token) {
+		this.token = token;
+	}
+
+	/**
+	 * @return Name of the coding in HTTP fields.
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * Get the coding of a Content-Encoding field.
+	 *
+	 * @param value
+	 *            - Value of the field, null if there is no field.
+	 * @return Coding, IDENTITY if value is null or empty.
+	 * @throws HTTPException
+	 *             - If coding is not supported or several codings are
+	 *             applied.
+	 */
+	public static ContentEncoding parse(String value) throws HTTPException {
+		if (value == null || value.trim().isEmpty()) {
+			return IDENTITY;
+		}
+		String name = value.trim().toLowerCase();
+		for (ContentEncoding encoding : values()) {
+			if (encoding.token.equals(name)) {
+				return encoding;
+			}
+		}
+		throw new HTTPException("Unsupported Content-Encoding: " + value);
+	}
+
+	/**
+	 * Choose a coding in an Accept-Encoding field. Codings with a weight of 0
+	 * are refused.
+	 *
+	 * @param value
+	 *            - Value of the field, null if there is no field.
+	 * @return Preferred supported coding accepted, IDENTITY if there is none.
+	 */
+	public static ContentEncoding negotiate(String value) {
+		if (value == null) {
+			return IDENTITY;
+		}
+		ContentEncoding chosen = IDENTITY;
+		for (String item : value.split(",")) {
+			String[] parameters = item.split(";");
+			String name = parameters[0].trim().toLowerCase();
+			if (parameters.length > 1 && isRefused(parameters[1])) {
+				continue;
+			}
+			for (ContentEncoding encoding : values()) {
+				if (encoding.token.equals(name)
+						&& (chosen == IDENTITY || encoding.ordinal() < chosen
+								.ordinal())) {
+					chosen = encoding;
+				}
+			}
+		}
+		return chosen;
+	}
+
+	private static boolean isRefused(String parameter) {
+		return parameter.replace(" ", "").matches("q=0(\\.0*)?");
+	}
+
+	/**
+	 * Encode a content.
+	 *
+	 * @param content
+	 *            - Bytes to encode.
+	 * @return Encoded bytes, content itself for IDENTITY.
+	 */
+	public byte[] encode(byte[] content) {
+		if (this == IDENTITY) {
+			return content;
+		}
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(
+				content.length / 4 + 64);
+		try (OutputStream out = this == GZIP ? new GZIPOutputStream(encoded)
+				: new DeflaterOutputStream(encoded)) {
+			out.write(content);
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return encoded.toByteArray();
+	}
+
+	/**
+	 * Decode a content as it is read.
+	 *
+	 * @param in
+	 *            - Encoded bytes.
+	 * @return Stream of decoded bytes, in itself for IDENTITY.
+	 * @throws IOException
+	 *             - If the gzip header is not valid.
+	 */
+	public InputStream decode(InputStream in) throws IOException {
+		switch (this) {
+		case GZIP:
+			return new GZIPInputStream(in);
+		case DEFLATE:
+			return new InflaterInputStream(in);
+		default:
+			return in;
+		}
+	}
+}
@@ -148,6 +148,24 @@ public class HTTPHeader {
 		return cs;
 	}
 
+	/**
+	 * @return the coding of the content, IDENTITY if there is no
+	 *         Content-Encoding field
+	 * @throws HTTPException
+	 *             when the coding is not supported
+	 */
+	public ContentEncoding getContentEncoding() throws HTTPException {
+		return ContentEncoding.parse(fields.get("Content-Encoding"));
+	}
+
+	/**
+	 * @return the preferred coding listed in the Accept-Encoding field,
+	 *         IDENTITY if there is no such field or no supported coding
+	 */
+	public ContentEncoding getAcceptEncoding() {
+		return ContentEncoding.negotiate(fields.get("Accept-Encoding"));
+	}
+
 	/**
 	 * @return true if the header correspond to a chunked response
 	 */
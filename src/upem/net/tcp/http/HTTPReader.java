@@ -1,6 +1,7 @@
 package upem.net.tcp.http;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
@@ -131,4 +132,102 @@ public class HTTPReader {
 		return bb;
 	}
 
+	/**
+	 * The encoded content is decoded by chunks as it is read on the socket,
+	 * it is not kept.
+	 *
+	 * @param header
+	 *            header of the message, with its Content-Length and
+	 *            Content-Encoding fields
+	 * @param maxLength
+	 *            max size of the decoded content
+	 * @return a ByteBuffer in write-mode containing the decoded content
+	 * @throws IOException
+	 *             HTTPException is the connection is closed before all bytes
+	 *             could be read, if the coding is not supported or if the
+	 *             decoded content is longer than maxLength
+	 */
+	public ByteBuffer readContent(HTTPHeader header, int maxLength)
+			throws IOException {
+		ContentEncoding encoding = header.getContentEncoding();
+		if (encoding == ContentEncoding.IDENTITY) {
+			return readBytes(header.getContentLength());
+		}
+		int contentLength = header.getContentLength();
+		ByteBuffer content = ByteBuffer.allocate(Math.min(maxLength,
+				Math.max(contentLength, 1) * 4));
+		try (InputStream decoder = encoding.decode(new ContentInputStream(
+				contentLength))) {
+			int read;
+			while ((read = decoder.read(content.array(), content.position(),
+					content.remaining())) != -1) {
+				content.position(content.position() + read);
+				if (!content.hasRemaining()) {
+					HTTPException.ensure(content.capacity() < maxLength
+							|| decoder.read() == -1,
+							"Decoded content is longer than " + maxLength
+									+ " bytes");
+					if (content.capacity() == maxLength) {
+						break;
+					}
+					ByteBuffer larger = ByteBuffer.allocate((int) Math.min(
+							maxLength, content.capacity() * 2L));
+					content.flip();
+					larger.put(content);
+					content = larger;
+				}
+			}
+		}
+		return content;
+	}
+
+	/**
+	 * Stream over the next bytes received, read from the buffer then from
+	 * the socket. Bytes following them stay in the buffer.
+	 */
+	private class ContentInputStream extends InputStream {
+		private int remaining;
+
+		/**
+		 * @param size
+		 *            number of bytes of the stream
+		 */
+		ContentInputStream(int size) {
+			remaining = size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			if (buff.position() == 0 && sc.read(buff) == -1) {
+				HTTPException.ensure(false, "Connection close before reading");
+			}
+			buff.flip();
+			int count = Math.min(Math.min(len, remaining), buff.remaining());
+			buff.get(b, off, count);
+			buff.compact();
+			remaining -= count;
+			return count;
+		}
+
+		/**
+		 * Skip bytes not read, the next message follows them.
+		 */
+		@Override
+		public void close() throws IOException {
+			byte[] skipped = new byte[1024];
+			while (read(skipped, 0, skipped.length) != -1) {
+				// Nothing to do
+			}
+		}
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,337 @@
+package upem.net.tcp.http;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental parser of a HTTP request, kept between two reads of the same
+ * connection. Bytes are scanned in place, only once: each call to parse()
+ * starts where the previous one stopped. Only the method, the path, the
+ * Content-Length and the Connection fields are extracted, with the fields
+ * given to the constructor; other fields are skipped.
+ */
+public class HTTPRequestParser {
+	private static final byte CR = HTTPReader.CR;
+	private static final byte LF = HTTPReader.LF;
+	private static final byte[] CONTENT_LENGTH = toAscii("content-length:");
+	private static final byte[] CONNECTION = toAscii("connection:");
+	private static final byte[] CLOSE = toAscii("close");
+	private static final byte[] KEEP_ALIVE = toAscii("keep-alive");
+	private static final byte[] HTTP_1_0 = toAscii("HTTP/1.0");
+	private static final byte[][] VERSIONS = { HTTP_1_0, toAscii("HTTP/1.1"),
+			toAscii("HTTP/1.2") };
+
+	private enum State {
+		REQUEST_LINE, FIELDS, BODY, DONE
+	}
+
+	private State state = State.REQUEST_LINE;
+	/**
+	 * Index of the next byte to scan.
+	 */
+	private int index = 0;
+	/**
+	 * Index of the first byte of the current line.
+	 */
+	private int lineStart = 0;
+	private String method;
+	private String path;
+	private int contentLength = -1;
+	private int bodyStart = -1;
+	private boolean keepAlive = false;
+	/**
+	 * Names of extra fields to extract, as given to the constructor.
+	 */
+	private final String[] fields;
+	/**
+	 * Names of extra fields to extract, lower case with the colon.
+	 */
+	private final byte[][] fieldNames;
+	private final String[] fieldValues;
+
+	/**
+	 * @param fields
+	 *            - Names of extra fields to extract, case insensitive.
+	 */
+	public HTTPRequestParser(String... fields) {
+		this.fields = fields.clone();
+		fieldNames = new byte[fields.length][];
+		for (int i = 0; i < fields.length; i++) {
+			fieldNames[i] = toAscii(fields[i].toLowerCase() + ":");
+		}
+		fieldValues = new String[fields.length];
+	}
+
+	/**
+	 * Scan bytes received since last call.
+	 *
+	 * @param buff
+	 *            - Buffer in write mode; the request starts at index 0. It is
+	 *            left unchanged.
+	 * @return True if the request, with its content, is complete.
+	 * @throws HTTPException
+	 *             - If the request is ill-formed.
+	 */
+	public boolean parse(ByteBuffer buff) throws HTTPException {
+		int end = buff.position();
+		while (state == State.REQUEST_LINE || state == State.FIELDS) {
+			int lineEnd = nextLine(buff, end);
+			if (lineEnd < 0) {
+				return false;
+			}
+			if (state == State.REQUEST_LINE) {
+				parseRequestLine(buff, lineStart, lineEnd);
+				state = State.FIELDS;
+			} else if (lineEnd == lineStart) {
+				bodyStart = index;
+				state = State.BODY;
+			} else {
+				parseField(buff, lineStart, lineEnd);
+			}
+			lineStart = index;
+		}
+		if (state == State.BODY) {
+			if (end - bodyStart < Math.max(contentLength, 0)) {
+				return false;
+			}
+			state = State.DONE;
+		}
+		return true;
+	}
+
+	/**
+	 * Forget current request, to parse a new one from index 0.
+	 */
+	public void reset() {
+		state = State.REQUEST_LINE;
+		index = 0;
+		lineStart = 0;
+		method = null;
+		path = null;
+		contentLength = -1;
+		bodyStart = -1;
+		keepAlive = false;
+		Arrays.fill(fieldValues, null);
+	}
+
+	public boolean isComplete() {
+		return state == State.DONE;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Get the value of an extra field. Nothing is allocated: names are
+	 * compared to those given to the constructor.
+	 *
+	 * @param name
+	 *            - Name of a field given to the constructor.
+	 * @return Value without surrounding blanks, null if request has not the
+	 *         field.
+	 */
+	public String getField(String name) {
+		for (int i = 0; i < fields.length; i++) {
+			if (fields[i].equalsIgnoreCase(name)) {
+				return fieldValues[i];
+			}
+		}
+		throw new IllegalArgumentException("Field " + name
+				+ " is not extracted");
+	}
+
+	/**
+	 * @return True if connection must stay open after the response: by
+	 *         default since HTTP/1.1, or if asked by a Connection field.
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * @return the value of the Content-Length field, -1 if the field does not
+	 *         exists.
+	 */
+	public int getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * @return index of the first byte of the content, -1 if header is not
+	 *         complete.
+	 */
+	public int getBodyStart() {
+		return bodyStart;
+	}
+
+	/**
+	 * @return index following the last byte of the request, -1 if header is
+	 *         not complete.
+	 */
+	public int getRequestEnd() {
+		if (bodyStart < 0) {
+			return -1;
+		}
+		return bodyStart + Math.max(contentLength, 0);
+	}
+
+	/**
+	 * Move index after the next CRLF.
+	 *
+	 * @return index of the CR, or -1 if line is not complete.
+	 */
+	private int nextLine(ByteBuffer buff, int end) {
+		while (index < end) {
+			byte current = buff.get(index++);
+			if (current == LF && index - 2 >= lineStart
+					&& buff.get(index - 2) == CR) {
+				return index - 2;
+			}
+		}
+		return -1;
+	}
+
+	private void parseRequestLine(ByteBuffer buff, int start, int end)
+			throws HTTPException {
+		int firstSpace = indexOf(buff, (byte) ' ', start, end);
+		int secondSpace = indexOf(buff, (byte) ' ', firstSpace + 1, end);
+		HTTPException.ensure(firstSpace > start
+				&& secondSpace > firstSpace + 1, "Badly formed request line");
+		boolean supported = false;
+		for (byte[] version : VERSIONS) {
+			supported |= equalsAscii(buff, secondSpace + 1, end, version,
+					false);
+		}
+		HTTPException.ensure(supported, "Unsupported version in request");
+		keepAlive = !equalsAscii(buff, secondSpace + 1, end, HTTP_1_0, false);
+		method = ascii(buff, start, firstSpace);
+		path = ascii(buff, firstSpace + 1, secondSpace);
+	}
+
+	private void parseField(ByteBuffer buff, int start, int end)
+			throws HTTPException {
+		if (startsWith(buff, start, end, CONNECTION)) {
+			parseConnection(buff, start + CONNECTION.length, end);
+			return;
+		}
+		for (int i = 0; i < fieldNames.length; i++) {
+			if (startsWith(buff, start, end, fieldNames[i])) {
+				int valueStart = skipBlanks(buff, start + fieldNames[i].length,
+						end);
+				fieldValues[i] = ascii(buff, valueStart,
+						trimBlanks(buff, valueStart, end));
+				return;
+			}
+		}
+		if (!startsWith(buff, start, end, CONTENT_LENGTH)) {
+			return;
+		}
+		int nameEnd = start + CONTENT_LENGTH.length;
+		int i = skipBlanks(buff, nameEnd, end);
+		int digitsStart = i;
+		long value = 0;
+		for (; i < end && buff.get(i) >= '0' && buff.get(i) <= '9'; i++) {
+			value = value * 10 + (buff.get(i) - '0');
+			HTTPException.ensure(value <= Integer.MAX_VALUE,
+					"Content-Length field value is too large");
+		}
+		HTTPException.ensure(i > digitsStart
+				&& skipBlanks(buff, i, end) == end,
+				"Invalid Content-Length field value");
+		contentLength = (int) value;
+	}
+
+	/**
+	 * Read the tokens of a Connection field.
+	 */
+	private void parseConnection(ByteBuffer buff, int start, int end) {
+		int i = start;
+		while (i < end) {
+			i = skipBlanks(buff, i, end);
+			int tokenEnd = indexOf(buff, (byte) ',', i, end);
+			if (tokenEnd < 0) {
+				tokenEnd = end;
+			}
+			int last = trimBlanks(buff, i, tokenEnd);
+			if (equalsAscii(buff, i, last, CLOSE, true)) {
+				keepAlive = false;
+			} else if (equalsAscii(buff, i, last, KEEP_ALIVE, true)) {
+				keepAlive = true;
+			}
+			i = tokenEnd + 1;
+		}
+	}
+
+	private static boolean startsWith(ByteBuffer buff, int start, int end,
+			byte[] prefix) {
+		int prefixEnd = start + prefix.length;
+		return prefixEnd <= end
+				&& equalsAscii(buff, start, prefixEnd, prefix, true);
+	}
+
+	private static int skipBlanks(ByteBuffer buff, int from, int end) {
+		int i = from;
+		while (i < end && (buff.get(i) == ' ' || buff.get(i) == '\t')) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return index following the last byte which is not a blank.
+	 */
+	private static int trimBlanks(ByteBuffer buff, int from, int end) {
+		int i = end;
+		while (i > from && (buff.get(i - 1) == ' ' || buff.get(i - 1) == '\t')) {
+			i--;
+		}
+		return i;
+	}
+
+	private static int indexOf(ByteBuffer buff, byte b, int from, int end) {
+		for (int i = from; i < end; i++) {
+			if (buff.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean equalsAscii(ByteBuffer buff, int start, int end,
+			byte[] expected, boolean ignoreCase) {
+		if (end - start != expected.length) {
+			return false;
+		}
+		for (int i = 0; i < expected.length; i++) {
+			byte current = buff.get(start + i);
+			if (ignoreCase && current >= 'A' && current <= 'Z') {
+				current += 'a' - 'A';
+			}
+			if (current != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String ascii(ByteBuffer buff, int start, int end) {
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++) {
+			chars[i - start] = (char) (buff.get(i) & 0x7F);
+		}
+		return new String(chars);
+	}
+
+	private static byte[] toAscii(String string) {
+		byte[] bytes = new byte[string.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) string.charAt(i);
+		}
+		return bytes;
+	}
+}